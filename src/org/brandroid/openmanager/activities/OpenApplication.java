@@ -6,6 +6,7 @@ import java.io.IOException;
 import org.brandroid.openmanager.R;
 import org.brandroid.openmanager.adapters.OpenClipboard;
 import org.brandroid.openmanager.interfaces.OpenApp;
+import org.brandroid.openmanager.util.BitmapPool;
 import org.brandroid.openmanager.util.ShellSession;
 import org.brandroid.utils.DiskLruCache;
 import org.brandroid.utils.Logger;
@@ -58,6 +59,7 @@ public class OpenApplication extends Application implements OpenApp {
         super.onTerminate();
         if (mBitmapCache != null)
             mBitmapCache.clear();
+        BitmapPool.get().clear();
         if (mBitmapDiskCache != null)
             try {
                 mBitmapDiskCache.close();
@@ -70,7 +72,7 @@ public class OpenApplication extends Application implements OpenApp {
     @Override
     public void onLowMemory() {
         super.onLowMemory();
-
+        BitmapPool.get().clear();
     }
 
     public void loadThemedAssets(Context c) {
@@ -164,6 +164,7 @@ import org.brandroid.openmanager.fragments.OpenPathFragmentInterface;
 import org.brandroid.openmanager.fragments.SearchResultsFragment;
 import org.brandroid.openmanager.fragments.TextEditorFragment;
 import org.brandroid.openmanager.interfaces.OpenApp;
+import org.brandroid.openmanager.services.FileScannerService;
 import org.brandroid.openmanager.util.BetterPopupWindow;
 import org.brandroid.openmanager.util.EventHandler;
 import org.brandroid.openmanager.util.EventHandler.BackgroundWork;
@@ -371,6 +372,8 @@ public class OpenExplorer extends OpenFragmentActivity implements OnBackStackCha
             Preferences.UID = UUID.randomUUID().toString();
             prefs.setSetting("stats", "uid", Preferences.UID);
         }
+        if (FileScannerService.isEnabled(this))
+            startService(new Intent(this, FileScannerService.class));
         lastSubmit = new Date().getTime();
 
         PackageInfo pi = null;
@@ -38,6 +38,7 @@ import org.brandroid.openmanager.data.OpenServers;
 import org.brandroid.openmanager.fragments.DialogHandler;
 import org.brandroid.openmanager.fragments.PreferenceFragmentV11;
 import org.brandroid.openmanager.interfaces.OpenApp;
+import org.brandroid.openmanager.services.FileScannerService;
 import org.brandroid.openmanager.util.InputDialog;
 import org.brandroid.openmanager.util.PrivatePreferences;
 import org.brandroid.openmanager.util.RootManager;
@@ -655,6 +656,15 @@ public class SettingsActivity extends SherlockPreferenceActivity implements
             showMasterPassDialog(activity);
         } else if (key.equals("pref_language")) {
 
+        } else if (key.equals("pref_index_files")) {
+            Intent intent = new Intent(activity, FileScannerService.class);
+            if (((CheckBoxPreference)preference).isChecked())
+                activity.startService(intent);
+            else {
+                activity.stopService(intent);
+                FileScannerService.reset(activity);
+            }
+            return true;
         } else if (key.equals("pref_thumbs_cache_clear")) {
             Toast.makeText(activity, "Cache cleared!", Toast.LENGTH_SHORT).show();
             return true;
@@ -2,10 +2,12 @@
 package org.brandroid.openmanager.adapters;
 
 import java.io.IOException;
+import java.text.SimpleDateFormat;
 import java.util.ArrayList;
 import java.util.Arrays;
 import java.util.Collection;
 import java.util.Collections;
+import java.util.Comparator;
 import java.util.Date;
 import java.util.HashSet;
 import java.util.LinkedHashMap;
@@ -19,6 +21,7 @@ import org.brandroid.openmanager.R;
 import org.brandroid.openmanager.activities.OpenApplication;
 import org.brandroid.openmanager.activities.OpenExplorer;
 import org.brandroid.openmanager.data.BookmarkHolder;
+import org.brandroid.openmanager.data.FileListing;
 import org.brandroid.openmanager.data.OpenFile;
 import org.brandroid.openmanager.data.OpenFileRoot;
 import org.brandroid.openmanager.data.OpenPath;
@@ -27,10 +30,12 @@ import org.brandroid.openmanager.data.OpenPath.OpenPathUpdateHandler;
 import org.brandroid.openmanager.data.OpenPath.SpaceHandler;
 import org.brandroid.openmanager.interfaces.OpenApp;
 import org.brandroid.openmanager.util.FileManager;
+import org.brandroid.openmanager.util.SortKey;
 import org.brandroid.openmanager.util.SortType;
 import org.brandroid.openmanager.util.SortType.Type;
 import org.brandroid.openmanager.util.ThumbnailCreator;
 import org.brandroid.openmanager.util.ThumbnailCreator.OnUpdateImageListener;
+import org.brandroid.openmanager.util.ThumbnailScheduler;
 import org.brandroid.openmanager.views.OpenPathView;
 import org.brandroid.utils.ImageUtils;
 import org.brandroid.utils.Logger;
@@ -69,9 +74,28 @@ public class ContentAdapter extends BaseAdapter {
     private final int KB = 1024;
     private final int MG = KB * KB;
     private final int GB = MG * KB;
+    /** Minimum time between merges of streamed entries, about one frame. */
+    private static final long MERGE_INTERVAL = 16;
+    /** Longest one merge may hold the UI thread. */
+    private static final long MERGE_BUDGET = 8;
 
     private final OpenPath mParent;
     private ArrayList<OpenPath> mData2 = new ArrayList<OpenPath>();
+    /**
+     * Sort keys of mData2, in the same order, for merging streamed entries.
+     * Null after mData2 changes any other way, until the next merge.
+     */
+    private ArrayList<SortKey> mKeys = null;
+    /** Paths in mData2, so streamed entries are only added once. */
+    private final HashSet<String> mPaths = new HashSet<String>();
+    /** Streamed entries waiting to be merged into mData2. */
+    private final ArrayList<OpenPath> mPending = new ArrayList<OpenPath>();
+    private boolean mMergePosted = false;
+    private long mLastMerge = 0;
+    /** Used instead of mData2 for local folders. */
+    private volatile FileListing mListing = null;
+    private SimpleDateFormat mShortDate = null;
+    private SimpleDateFormat mLongDate = null;
     //private OpenPath[] mFinalItems;
     //private boolean isFinal = false;
     // private final List<OpenPath> mData2 = new ArrayList<OpenPath>();
@@ -162,6 +186,7 @@ public class ContentAdapter extends BaseAdapter {
 
     public void setSorting(SortType sort) {
         mSorting = sort;
+        mKeys = null;
         notifyDataSetChanged();
     }
 
@@ -180,6 +205,68 @@ public class ContentAdapter extends BaseAdapter {
         updateData(items, true);
     }
 
+    /**
+     * Bind to a columnar listing of a local folder, which keeps entries as
+     * primitives and only creates an OpenPath for the rows being shown.
+     */
+    public void updateData(final FileListing listing) {
+        sortListing(listing);
+        Runnable bind = new Runnable() {
+            public void run() {
+                bindListing(listing);
+            }
+        };
+        if (Thread.currentThread().equals(OpenExplorer.UiThread))
+            bind.run();
+        else
+            OpenExplorer.getHandler().post(bind);
+    }
+
+    /**
+     * Sort a listing for display with the current settings. May be called
+     * off the UI thread.
+     */
+    public void sortListing(FileListing listing) {
+        listing.sort(mSorting, getShowHiddenFiles(), mShowFiles);
+        Logger.LogVerbose("updateData on " + listing.size() + " entries (for " + mParent + ") : "
+                + mSorting.toString());
+    }
+
+    /**
+     * Show a listing sorted by {@link #sortListing(FileListing)}. Must be
+     * called on the UI thread.
+     */
+    public void bindListing(FileListing listing) {
+        FileManager.setOpenCache(mParent);
+        ThumbnailScheduler.get().cancelGroup(this);
+        mData2.clear();
+        mPaths.clear();
+        mKeys = null;
+        mListing = listing;
+        super.notifyDataSetChanged();
+    }
+
+    /**
+     * Show an update of the bound listing made by
+     * {@link FileListing#update(Collection)}. The rows that didn't change keep
+     * their place and their thumbnails; only requests for the changed paths
+     * are dropped. Must be called on the UI thread.
+     */
+    public void updateListing(FileListing listing, Collection<String> changed) {
+        if (!listing.isSorted(mSorting, getShowHiddenFiles(), mShowFiles))
+            sortListing(listing);
+        ThumbnailScheduler.get().cancelFiles(this, changed);
+        mListing = listing;
+        super.notifyDataSetChanged();
+    }
+
+    /**
+     * Returns the local listing being shown, or null if the entries are paths.
+     */
+    public FileListing getListing() {
+        return mListing;
+    }
+
     private void updateData(final OpenPath[] items, final boolean doSort) {
         long time = new Date().getTime();
         if (items == null) {
@@ -198,7 +285,11 @@ public class ContentAdapter extends BaseAdapter {
                 + " + " + (doSort ? mSorting.toString() : "no sort"));
         
         //OpenPath.Sorting = mSorting;
+        ThumbnailScheduler.get().cancelGroup(this);
+        mListing = null;
         mData2.clear();
+        mPaths.clear();
+        mKeys = null;
         //isFinal = false;
         //mFinalItems = null;
 
@@ -216,7 +307,8 @@ public class ContentAdapter extends BaseAdapter {
                 }
                 if (!mShowFiles && !f.isDirectory())
                     continue;
-                mData2.add(f);
+                if (mPaths.add(f.getAbsolutePath()))
+                    mData2.add(f);
             }
         
         if(doSort)
@@ -283,8 +375,13 @@ public class ContentAdapter extends BaseAdapter {
 
     public void sort(SortType sort) {
         OpenPath.Sorting = sort;
-        if (mData2 != null && mData2.size() > 1)
-            Collections.sort(mData2);
+        FileListing listing = mListing;
+        if (listing != null)
+            listing.sort(sort, getShowHiddenFiles(), mShowFiles);
+        else if (mData2 != null && mData2.size() > 1) {
+            SortKey.sort(mData2, sort);
+            mKeys = null;
+        }
     }
     
     private OpenPath[] getList() {
@@ -386,8 +483,7 @@ public class ContentAdapter extends BaseAdapter {
         
         if (mInfo != null) {
             SpannableStringBuilder sInfo = new SpannableStringBuilder(String.format(
-                    file.getDetails(getShowHiddenFiles()), getResources()
-                            .getString(R.string.s_files)));
+                    getDetails(position, file), getResources().getString(R.string.s_files)));
             if ((OpenPath.Sorting.getType() == Type.SIZE
                     || OpenPath.Sorting.getType() == Type.SIZE_DESC) && sInfo.length() > 0)
                 sInfo.setSpan(new StyleSpan(Typeface.BOLD), 0, sInfo.length(),
@@ -399,10 +495,10 @@ public class ContentAdapter extends BaseAdapter {
                 sInfo.clear();
 
             if (mDate != null)
-                mDate.setText(file.getFormattedDate(showLongDate));
+                mDate.setText(getFormattedDate(position, file, showLongDate));
             else
                 sInfo.append((sInfo.length() == 0 ? "" : " | ")
-                        + file.getFormattedDate(showLongDate));
+                        + getFormattedDate(position, file, showLongDate));
 
             mInfo.setText(sInfo);
         }
@@ -427,15 +523,16 @@ public class ContentAdapter extends BaseAdapter {
 
         if (mIcon != null) {
             // mIcon.invalidate();
-            ViewUtils.setAlpha(file.isHidden() ? 0.4f : 1.0f, view, R.id.content_icon);
+            ViewUtils.setAlpha(isHidden(position, file) ? 0.4f : 1.0f, view, R.id.content_icon);
             if (!mShowThumbnails || !file.hasThumbnail()) {
+                ThumbnailScheduler.get().cancel(mIcon);
                 mIcon.setImageDrawable(ThumbnailCreator.getDefaultDrawable(file, mWidth, mHeight,
                         getContext()));
             } else { // if(!ThumbnailCreator.getImagePath(mIcon).equals(file.getPath()))
                 // {
                 // Logger.LogDebug("Bitmapping " + file.getPath());
                 // if(OpenExplorer.BEFORE_HONEYCOMB) mIcon.setAlpha(0);
-                ThumbnailCreator.setThumbnail(mApp, mIcon, file, mWidth, mHeight,
+                ThumbnailCreator.setThumbnail(mApp, mIcon, file, mWidth, mHeight, this, position,
                         new OnUpdateImageListener() {
                             @Override
                             public void updateImage(final Bitmap b) {
@@ -522,10 +619,52 @@ public class ContentAdapter extends BaseAdapter {
         return view;
     }
 
+    /**
+     * Returns the listing position for an adapter position, or -1 if the
+     * adapter is not bound to a listing.
+     */
+    private int getListingPosition(FileListing listing, int position) {
+        if (listing == null)
+            return -1;
+        if (mPlusParent)
+            position--;
+        return position >= 0 && position < listing.size() ? position : -1;
+    }
+
+    private String getDetails(int position, OpenPath file) {
+        FileListing listing = mListing;
+        int i = getListingPosition(listing, position);
+        // the listing holds no child counts, so folders count theirs as shown
+        if (i < 0 || listing.isDirectory(i))
+            return file.getDetails(getShowHiddenFiles());
+        return OpenPath.formatSize(listing.length(i));
+    }
+
+    private CharSequence getFormattedDate(int position, OpenPath file, boolean showLongDate) {
+        FileListing listing = mListing;
+        int i = getListingPosition(listing, position);
+        if (i < 0)
+            return file.getFormattedDate(showLongDate);
+        if (mShortDate == null) {
+            mShortDate = new SimpleDateFormat("MM-dd-yy");
+            mLongDate = new SimpleDateFormat("MM-dd-yyyy HH:mm");
+        }
+        return (showLongDate ? mLongDate : mShortDate).format(listing.lastModified(i));
+    }
+
+    private boolean isHidden(int position, OpenPath file) {
+        FileListing listing = mListing;
+        int i = getListingPosition(listing, position);
+        return i < 0 ? file.isHidden() : listing.isHidden(i);
+    }
+
     @Override
     public int getCount() {
 //        if (!isFinal)
 //            prefinalize();
+        FileListing listing = mListing;
+        if (listing != null)
+            return listing.size() + (mPlusParent ? 1 : 0);
         return mData2.size() + (mPlusParent ? 1 : 0);
     }
 
@@ -540,6 +679,9 @@ public class ContentAdapter extends BaseAdapter {
             else
                 position--;
         }
+        FileListing listing = mListing;
+        if (listing != null)
+            return position >= 0 && position < listing.size() ? listing.getPath(position) : null;
         if (position < 0 || position >= mData2.size())
             return null;
         return mData2.get(position);
@@ -553,32 +695,146 @@ public class ContentAdapter extends BaseAdapter {
     }
 
     public void clearData() {
+        synchronized (mPending) {
+            mPending.clear();
+        }
+        ThumbnailScheduler.get().cancelGroup(this);
+        mListing = null;
         mData2.clear();
+        mPaths.clear();
+        mKeys = null;
 //        isFinal = false;
 //        mFinalItems = null;
     }
 
+    /**
+     * Queue entries from a listing still in progress. They are merged into
+     * the sorted list on the UI thread at most once a frame, so the first
+     * screen of a slow listing shows at once, without a full sort and redraw
+     * for every entry. Safe to call from any thread.
+     */
     public void addAll(final Collection<? extends OpenPath> collection) {
-//        if (isFinal)
-//            unfinalize();
-    	if(Thread.currentThread().equals(OpenExplorer.UiThread))
-    		new Thread(new Runnable() {
-				@Override
-				public void run() {
-					addAll(collection);
-				}
-			}).start();
-    	else {
-    		for(OpenPath p : collection)
-    			if(!mData2.contains(p))
-    				mData2.add(p);
-    		notifyDataSetChanged();
-    	}
+        synchronized (mPending) {
+            mPending.addAll(collection);
+            if (mMergePosted)
+                return;
+            mMergePosted = true;
+        }
+        long wait = mLastMerge + MERGE_INTERVAL - System.currentTimeMillis();
+        OpenExplorer.getHandler().postDelayed(mMerge, Math.max(0, wait));
+    }
+
+    private final Runnable mMerge = new Runnable() {
+        public void run() {
+            long start = System.currentTimeMillis();
+            mLastMerge = start;
+            ArrayList<OpenPath> batch;
+            synchronized (mPending) {
+                batch = new ArrayList<OpenPath>(mPending);
+                mPending.clear();
+            }
+            unbindListing();
+            SortType sort = mSorting;
+            Comparator<SortKey> order = SortKey.getComparator(sort);
+            boolean showHidden = getShowHiddenFiles();
+            if (mKeys == null) {
+                mKeys = new ArrayList<SortKey>(mData2.size());
+                for (OpenPath path : mData2)
+                    mKeys.add(new SortKey(path, sort));
+            }
+            ArrayList<SortKey> keys = new ArrayList<SortKey>(batch.size());
+            int i = 0;
+            for (; i < batch.size(); i++) {
+                if (i % 32 == 31 && System.currentTimeMillis() - start >= MERGE_BUDGET)
+                    break;
+                SortKey key = getKey(batch.get(i), sort, showHidden);
+                if (key != null)
+                    keys.add(key);
+            }
+            boolean added = mergeSorted(keys, order);
+            synchronized (mPending) {
+                if (i < batch.size())
+                    mPending.addAll(0, batch.subList(i, batch.size()));
+                if (mPending.isEmpty())
+                    mMergePosted = false;
+                else
+                    OpenExplorer.getHandler().postDelayed(this, MERGE_INTERVAL);
+            }
+            if (added)
+                ContentAdapter.super.notifyDataSetChanged();
+        }
+    };
+
+    /**
+     * Returns the key of a streamed path to be merged, or null if the path
+     * is filtered out or already listed.
+     */
+    private SortKey getKey(OpenPath path, SortType sort, boolean showHidden) {
+        if (path == null || mPaths.contains(path.getAbsolutePath()))
+            return null;
+        if (!showHidden && path.isHidden())
+            return null;
+        if (!mShowFiles && !path.isDirectory())
+            return null;
+        mPaths.add(path.getAbsolutePath());
+        return new SortKey(path, sort);
+    }
+
+    /**
+     * Sort new keys and merge them into mData2 in one pass, each after any
+     * equal entries already listed.
+     *
+     * @return false if there was nothing to merge.
+     */
+    private boolean mergeSorted(ArrayList<SortKey> keys, Comparator<SortKey> order) {
+        if (keys.isEmpty())
+            return false;
+        Collections.sort(keys, order);
+        int n = mKeys.size(), m = keys.size();
+        ArrayList<OpenPath> data = new ArrayList<OpenPath>(n + m);
+        ArrayList<SortKey> merged = new ArrayList<SortKey>(n + m);
+        for (int p = 0, q = 0; p < n || q < m;) {
+            SortKey key;
+            if (q >= m || (p < n && order.compare(mKeys.get(p), keys.get(q)) <= 0))
+                key = mKeys.get(p++);
+            else
+                key = keys.get(q++);
+            merged.add(key);
+            data.add(key.getPath());
+        }
+        mData2 = data;
+        mKeys = merged;
+        return true;
+    }
+
+    /**
+     * Move a bound listing into mData2, for changes the listing can't hold.
+     */
+    private void unbindListing() {
+        FileListing listing = mListing;
+        if (listing == null)
+            return;
+        mData2.clear();
+        mPaths.clear();
+        mKeys = null;
+        for (int i = 0; i < listing.size(); i++) {
+            OpenPath path = listing.getPath(i);
+            mData2.add(path);
+            mPaths.add(path.getAbsolutePath());
+        }
+        mListing = null;
     }
 
     public void selectAll()
     {
-        mSelectedSet.addAll(mData2);
+        FileListing listing = mListing;
+        if (listing != null) {
+            ArrayList<OpenPath> all = new ArrayList<OpenPath>(listing.size());
+            for (int i = 0; i < listing.size(); i++)
+                all.add(listing.getPath(i));
+            mSelectedSet.addAll(all);
+        } else
+            mSelectedSet.addAll(mData2);
         notifyDataSetChanged();
     }
 
@@ -670,6 +926,19 @@ public class ContentAdapter extends BaseAdapter {
                 0, 0, 0, 0
         }; // total, folders, files, hidden
         long bytes = 0;
+        FileListing listing = mListing;
+        if (listing != null)
+            for (int i = 0; i < listing.size(); i++) {
+                stats[0]++;
+                if (!mShowHiddenFiles && listing.isHidden(i))
+                    stats[3]++;
+                else if (listing.isDirectory(i))
+                    stats[1]++;
+                else {
+                    stats[2]++;
+                    bytes += listing.length(i);
+                }
+            }
         try {
             if (mData2 != null)
                 for (OpenPath p : mData2)
@@ -17,6 +17,7 @@ import org.brandroid.openmanager.data.OpenPath;
 import org.brandroid.openmanager.data.OpenSmartFolder;
 import org.brandroid.openmanager.fragments.DialogHandler;
 import org.brandroid.openmanager.fragments.OpenFragment;
+import org.brandroid.openmanager.util.SortKey;
 import org.brandroid.openmanager.util.SortType;
 import org.brandroid.openmanager.util.ThumbnailCreator;
 import org.brandroid.openmanager.util.ThumbnailCreator.OnUpdateImageListener;
@@ -46,7 +47,7 @@ public class ContentTreeAdapter extends BaseAdapter {
         mPath = path;
         try {
             mContent = path.listDirectories();
-            Arrays.sort(mContent);
+            SortKey.sort(mContent, OpenPath.Sorting);
         } catch (IOException e) {
             // TODO Auto-generated catch block
             e.printStackTrace();
@@ -0,0 +1,172 @@
+
+package org.brandroid.openmanager.adapters;
+
+import java.util.LinkedHashSet;
+import java.util.List;
+import java.util.Locale;
+import java.util.Set;
+
+/**
+ * Trigram index over cached file names. Each name is lowercased, padded with
+ * a character that can never appear in a name, and split into every three
+ * character substring. A substring, prefix ("abc*") or extension ("*.mp3")
+ * query is then answered by looking up the trigrams of the query instead of
+ * scanning every row, and the few candidates are checked with LIKE.
+ */
+public class FilenameIndex {
+    public static final String TABLE = "trigrams";
+    public static final String KEY_GRAM = "gram";
+    public static final String KEY_FILE = "file_id";
+
+    /** Marks the start and end of a name. */
+    private static final char EDGE = '/';
+
+    public enum Mode {
+        SUBSTRING, PREFIX, SUFFIX
+    }
+
+    private final Mode mMode;
+    private final String mTerm;
+
+    /**
+     * @param query Search text. A trailing * makes it a prefix query and a
+     *            leading * makes it a suffix (extension) query.
+     */
+    public FilenameIndex(String query) {
+        String term = query == null ? "" : query.trim().toLowerCase(Locale.US);
+        Mode mode = Mode.SUBSTRING;
+        if (term.length() > 1 && term.startsWith("*")) {
+            mode = Mode.SUFFIX;
+            term = term.substring(1);
+        } else if (term.length() > 1 && term.endsWith("*")) {
+            mode = Mode.PREFIX;
+            term = term.substring(0, term.length() - 1);
+        }
+        mMode = mode;
+        mTerm = term;
+    }
+
+    /**
+     * Returns the statements that create the index for a table of files.
+     */
+    public static String[] getCreateStatements(String filesTable, String keyId) {
+        return new String[] {
+                "create table " + TABLE + " (" + KEY_GRAM + " text not null, " + KEY_FILE
+                        + " integer not null);",
+                "create index " + TABLE + "_" + KEY_GRAM + " on " + TABLE + " (" + KEY_GRAM
+                        + ");",
+                "create index " + TABLE + "_" + KEY_FILE + " on " + TABLE + " (" + KEY_FILE
+                        + ");",
+                "create trigger " + filesTable + "_" + TABLE + " after delete on " + filesTable
+                        + " begin delete from " + TABLE + " where " + KEY_FILE + " = old."
+                        + keyId + "; end;"
+        };
+    }
+
+    /**
+     * Returns the distinct trigrams to index for a file name.
+     */
+    public static Set<String> getGrams(String name) {
+        return split(EDGE + name.toLowerCase(Locale.US) + EDGE + EDGE);
+    }
+
+    private static Set<String> split(String s) {
+        LinkedHashSet<String> ret = new LinkedHashSet<String>();
+        for (int i = 0; i + 3 <= s.length(); i++)
+            ret.add(s.substring(i, i + 3));
+        return ret;
+    }
+
+    public Mode getMode() {
+        return mMode;
+    }
+
+    public String getTerm() {
+        return mTerm;
+    }
+
+    /**
+     * Returns the query as it appears inside a padded name.
+     */
+    private String getKey() {
+        switch (mMode) {
+            case PREFIX:
+                return EDGE + mTerm;
+            case SUFFIX:
+                return mTerm + EDGE;
+            default:
+                return mTerm;
+        }
+    }
+
+    /**
+     * Returns true if the query can be answered from the index. An empty
+     * query matches everything and cannot.
+     */
+    public boolean isIndexed() {
+        return mTerm.length() > 0;
+    }
+
+    /**
+     * Returns a subquery selecting the ids of candidate files, with its
+     * arguments appended to args.
+     */
+    public String getCandidates(List<String> args) {
+        String key = getKey();
+        if (key.length() < 3) {
+            // every short substring of a padded name starts one of its trigrams
+            args.add(key);
+            args.add(key + '\uffff');
+            return "select " + KEY_FILE + " from " + TABLE + " where " + KEY_GRAM
+                    + " >= ? and " + KEY_GRAM + " < ?";
+        }
+        Set<String> grams = split(key);
+        StringBuilder sb = new StringBuilder();
+        sb.append("select ").append(KEY_FILE).append(" from ").append(TABLE).append(" where ")
+                .append(KEY_GRAM).append(" in (");
+        int i = 0;
+        for (String gram : grams) {
+            sb.append(i++ > 0 ? ", ?" : "?");
+            args.add(gram);
+        }
+        sb.append(") group by ").append(KEY_FILE).append(" having count(distinct ")
+                .append(KEY_GRAM).append(") = ").append(grams.size());
+        return sb.toString();
+    }
+
+    /**
+     * Returns a LIKE pattern (escaped with a backslash) that confirms a
+     * candidate, since trigrams alone do not prove they are adjacent.
+     */
+    public String getLikePattern() {
+        String term = escapeLike(mTerm);
+        switch (mMode) {
+            case PREFIX:
+                return term + "%";
+            case SUFFIX:
+                return "%" + term;
+            default:
+                return "%" + term + "%";
+        }
+    }
+
+    public static String escapeLike(String s) {
+        return s.replace("\\", "\\\\").replace("%", "\\%").replace("_", "\\_");
+    }
+
+    /**
+     * Returns true if a name matches the query, for searches done without
+     * the index.
+     */
+    public boolean matches(String name) {
+        String lname = name.toLowerCase(Locale.US);
+        switch (mMode) {
+            case PREFIX:
+                return lname.startsWith(mTerm);
+            case SUFFIX:
+                return lname.endsWith(mTerm);
+            default:
+                return lname.indexOf(mTerm) > -1;
+        }
+    }
+}
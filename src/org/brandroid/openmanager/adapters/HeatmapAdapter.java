@@ -16,6 +16,7 @@ import org.brandroid.openmanager.R;
 import org.brandroid.openmanager.activities.OpenExplorer;
 import org.brandroid.openmanager.data.OpenPath;
 import org.brandroid.openmanager.interfaces.OpenApp;
+import org.brandroid.openmanager.util.SortKey;
 import org.brandroid.openmanager.util.ThumbnailCreator;
 import org.brandroid.utils.Logger;
 
@@ -58,7 +59,7 @@ public class HeatmapAdapter extends BaseAdapter {
         } catch (IOException e) {
             Logger.LogError("Couldn't list for Heatmap.", e);
         }
-        Collections.sort(mPaths);
+        SortKey.sort(mPaths, OpenPath.Sorting);
         for (OpenPath kid : mPaths) {
             if (kid.isDirectory()) {
                 ScanSizeTask task = new ScanSizeTask(null, null);
@@ -1,7 +1,11 @@
 
 package org.brandroid.openmanager.adapters;
 
-import org.brandroid.openmanager.data.OpenFile;
+import java.util.ArrayList;
+import java.util.HashMap;
+import java.util.LinkedHashMap;
+import java.util.List;
+
 import org.brandroid.openmanager.data.OpenPath;
 import org.brandroid.openmanager.util.SortType;
 import org.brandroid.utils.Logger;
@@ -11,6 +15,7 @@ import android.database.Cursor;
 import android.database.SQLException;
 import android.database.sqlite.SQLiteDatabase;
 import android.database.sqlite.SQLiteOpenHelper;
+import android.database.sqlite.SQLiteStatement;
 
 public class OpenPathDbAdapter {
     public static final String KEY_ID = "_id";
@@ -29,13 +34,20 @@ public class OpenPathDbAdapter {
 
     private static final String DATABASE_NAME = "files.db";
     private static final String DATABASE_TABLE = "files";
-    private static final int DATABASE_VERSION = 8;
+    private static final int DATABASE_VERSION = 10;
 
     private static final String DATABASE_CREATE = "create table " + DATABASE_TABLE + " (" + KEY_ID
             + " integer primary key autoincrement, " + KEY_FOLDER + " text null, " + KEY_NAME
             + " text null, " + KEY_SIZE + " text not null, " + KEY_MTIME + " int not null, "
             // + KEY_STAMP + " int not null, "
             + KEY_ATTRIBUTES + " int null);";
+    private static final String DATABASE_CREATE_FOLDER_INDEX = "create index " + DATABASE_TABLE
+            + "_" + KEY_FOLDER + " on " + DATABASE_TABLE + " (" + KEY_FOLDER + ");";
+
+    private static final String FOLDERS_TABLE = "folders";
+    private static final String KEY_PATH = "path";
+    private static final String FOLDERS_CREATE = "create table " + FOLDERS_TABLE + " ("
+            + KEY_PATH + " text primary key, " + KEY_MTIME + " int not null);";
 
     private final Context mCtx;
 
@@ -49,6 +61,14 @@ public class OpenPathDbAdapter {
         public void onCreate(SQLiteDatabase db) {
             Logger.LogVerbose("Creating table [" + DATABASE_NAME + "]");
             db.execSQL(DATABASE_CREATE);
+            createIndexes(db);
+        }
+
+        private void createIndexes(SQLiteDatabase db) {
+            db.execSQL(DATABASE_CREATE_FOLDER_INDEX);
+            db.execSQL(FOLDERS_CREATE);
+            for (String sql : FilenameIndex.getCreateStatements(DATABASE_TABLE, KEY_ID))
+                db.execSQL(sql);
         }
 
         @Override
@@ -60,11 +80,15 @@ public class OpenPathDbAdapter {
                         + "] int null");
                 if (newVersion >= 7)
                     db.execSQL("ALTER TABLE " + DATABASE_TABLE + " DROP COLUMN [stamp]");
+                if (newVersion >= 10)
+                    createIndexes(db);
                 return;
             }
             Logger.LogVerbose("Upgrading table [" + DATABASE_TABLE + "] from version " + oldVersion
                     + " to " + newVersion + ", which will destroy all old data");
             db.execSQL("DROP TABLE IF EXISTS " + DATABASE_TABLE);
+            db.execSQL("DROP TABLE IF EXISTS " + FilenameIndex.TABLE);
+            db.execSQL("DROP TABLE IF EXISTS " + FOLDERS_TABLE);
             onCreate(db);
         }
     }
@@ -79,15 +103,19 @@ public class OpenPathDbAdapter {
         if (mDbHelper == null)
             mDbHelper = new DatabaseHelper(mCtx);
         try {
-            if (mDb == null)
-                mDb = mDbHelper.getWritableDatabase();
+            // also reopens a database closed by close() or OpenPath.closeDb()
+            mDb = mDbHelper.getWritableDatabase();
         } catch (IllegalStateException ise) {
             Logger.LogError("Couldn't open logger", ise);
         }
         return this;
     }
 
-    public void close() {
+    /**
+     * Close the database, waiting for any write in progress. The next call
+     * that needs it opens it again.
+     */
+    public synchronized void close() {
         if (mDb != null && mDb.isOpen())
             mDb.close();
     }
@@ -112,78 +140,148 @@ public class OpenPathDbAdapter {
         return -1;
     }
 
-    private OpenPath[] slice(OpenPath[] input, int index, int size) {
-        OpenPath[] ret = new OpenPath[size];
-        for (int i = index; i < index + size; i++)
-            ret[i - index] = input[i];
-        return ret;
+    /**
+     * Metadata for one row, read from its path before any database work
+     * starts so the insert transaction only binds values.
+     */
+    public static class Entry {
+        public final String folder;
+        public final String name;
+        public final long size;
+        public final long modified;
+        public final int attributes;
+
+        public Entry(String folder, String name, long size, long modified, int attributes) {
+            this.folder = folder;
+            this.name = name;
+            this.size = size;
+            this.modified = modified;
+            this.attributes = attributes;
+        }
+
+        public Entry(OpenPath file) {
+            OpenPath parent = file.getParent();
+            this.folder = parent != null ? parent.getPath() : file.getPath().replace(
+                    "/" + file.getName(), "");
+            this.name = file.getName();
+            this.size = file.length();
+            Long mtime = file.lastModified();
+            this.modified = mtime != null ? mtime : 0;
+            this.attributes = file.getAttributes();
+        }
     }
 
+    /**
+     * Cache a set of paths, one transaction per folder.
+     *
+     * @return Number of rows written.
+     */
     public long createItem(OpenPath[] files) {
+        LinkedHashMap<String, List<Entry>> folders = new LinkedHashMap<String, List<Entry>>();
+        for (OpenPath file : files) {
+            if (file == null)
+                continue;
+            Entry entry = new Entry(file);
+            List<Entry> rows = folders.get(entry.folder);
+            if (rows == null)
+                folders.put(entry.folder, rows = new ArrayList<Entry>());
+            rows.add(entry);
+        }
+        long ret = 0;
+        for (List<Entry> rows : folders.values())
+            ret += Math.max(0, createItems(rows, null, 0));
+        return ret;
+    }
+
+    /**
+     * Replace the cached listing of a folder with its current children.
+     *
+     * @return Number of rows written, or -1 if the write failed.
+     */
+    public long replaceFolder(OpenPath folder, OpenPath[] kids) {
+        ArrayList<Entry> rows = new ArrayList<Entry>(kids.length);
+        for (OpenPath kid : kids)
+            if (kid != null)
+                rows.add(new Entry(kid));
+        Long modified = folder.lastModified();
+        return createItems(rows, folder.getPath(), modified != null ? modified : 0);
+    }
+
+    /**
+     * Write rows with a single compiled insert inside one transaction.
+     *
+     * @param rows Metadata to insert.
+     * @param replaceFolder If not null, rows for this folder are deleted in
+     *            the same transaction first.
+     * @param folderModified Modified time of replaceFolder as listed, kept
+     *            so later scans can tell if it has changed.
+     * @return Number of rows written, or -1 if the database is unavailable or
+     *         the write failed.
+     */
+    public synchronized long createItems(List<Entry> rows, String replaceFolder,
+            long folderModified) {
         if (mDb == null || !mDb.isOpen())
             open();
         if (mDb == null)
             return -1;
-        if (files.length > 50) {
-            Logger.LogDebug("Splitting createItem(OpenPath[]) into groups");
-            long ret = 0;
-            for (int start = 0; start < files.length; start += 50)
-                ret += createItem(slice(files, start, Math.min(50, files.length - start)));
-            return ret;
-        }
+        long ret = 0;
+        SQLiteStatement insert = null, grams = null;
+        mDb.beginTransaction();
         try {
-            String query = generateInsertStatement(files);
-            if (query == null || query.equals(""))
-                return 0;
-            if (mDb == null || !mDb.isOpen())
-                open();
-            mDb.execSQL(query);
-            return files.length;
-        } catch (Exception e) {
-            Logger.LogError("Couldn't do mass insert.");
-            long ret = 0;
-            for (OpenPath file : files)
-                if (file != null)
-                    ret += createItem(file, false);
-            return ret;
+            if (replaceFolder != null) {
+                mDb.delete(DATABASE_TABLE, KEY_FOLDER + " = ?", new String[] {
+                    replaceFolder
+                });
+                ContentValues folder = new ContentValues();
+                folder.put(KEY_PATH, replaceFolder);
+                folder.put(KEY_MTIME, folderModified);
+                mDb.replace(FOLDERS_TABLE, null, folder);
+            }
+            insert = mDb.compileStatement("INSERT INTO " + DATABASE_TABLE + " (" + KEY_FOLDER
+                    + ", " + KEY_NAME + ", " + KEY_SIZE + ", " + KEY_MTIME + ", "
+                    + KEY_ATTRIBUTES + ") VALUES (?, ?, ?, ?, ?)");
+            grams = compileGramInsert();
+            for (Entry row : rows) {
+                insert.clearBindings();
+                insert.bindString(1, row.folder);
+                insert.bindString(2, row.name);
+                insert.bindLong(3, row.size);
+                insert.bindLong(4, row.modified);
+                insert.bindLong(5, row.attributes);
+                long id = insert.executeInsert();
+                if (id > -1) {
+                    indexName(grams, id, row.name);
+                    ret++;
+                }
+            }
+            mDb.setTransactionSuccessful();
+        } catch (SQLException e) {
+            Logger.LogError("Couldn't write " + rows.size() + " rows to Files DB.", e);
+            ret = -1;
+        } catch (IllegalStateException e) {
+            Logger.LogError("Files DB closed while writing " + rows.size() + " rows.", e);
+            ret = -1;
+        } finally {
+            if (insert != null)
+                insert.close();
+            if (grams != null)
+                grams.close();
+            mDb.endTransaction();
         }
+        return ret;
     }
 
-    private String generateInsertStatement(OpenPath[] files) {
-        if (files == null || files.length == 0)
-            return null;
-        StringBuilder sb = new StringBuilder();
-        sb.append("INSERT INTO [" + DATABASE_TABLE + "] ('" + KEY_FOLDER + "','" + KEY_NAME + "','"
-                + KEY_SIZE + "','" + KEY_MTIME + "','" + KEY_ATTRIBUTES + "')");
-        int i = 0;
-        for (OpenPath file : files) {
-            if (file == null)
-                continue;
-            generateInsertStatement(file, sb, i++ == 0);
-        }
-        // sb.setLength(sb.length() - 1);
-        return sb.toString();
+    private SQLiteStatement compileGramInsert() {
+        return mDb.compileStatement("INSERT INTO " + FilenameIndex.TABLE + " ("
+                + FilenameIndex.KEY_GRAM + ", " + FilenameIndex.KEY_FILE + ") VALUES (?, ?)");
     }
 
-    private void generateInsertStatement(OpenPath file, StringBuilder sb, boolean first) {
-        if (!first)
-            sb.append(" UNION ALL");
-        sb.append(" SELECT '");
-        String sParent = "";
-        if (file.getParent() != null)
-            sParent = file.getParent().getPath();
-        else
-            sParent = file.getPath().replace("/" + file.getName(), "");
-        sb.append(sParent.replaceAll("'", "''"));
-        sb.append("','");
-        sb.append(file.getName().replaceAll("'", "''"));
-        sb.append("','");
-        sb.append(file.length());
-        sb.append("','");
-        sb.append(file.lastModified());
-        sb.append("','");
-        sb.append(file.getAttributes());
-        sb.append("'");
+    private static void indexName(SQLiteStatement grams, long id, String name) {
+        for (String gram : FilenameIndex.getGrams(name)) {
+            grams.bindString(1, gram);
+            grams.bindLong(2, id);
+            grams.executeInsert();
+        }
     }
 
     public long createItem(OpenPath path, boolean removeOld) {
@@ -210,16 +308,75 @@ public class OpenPathDbAdapter {
             if (removeOld)
                 mDb.delete(DATABASE_TABLE, KEY_FOLDER + " = '" + sParent + "' AND " + KEY_NAME
                         + " = '" + path.getName() + "'", null);
-            if (mDb.replace(DATABASE_TABLE, null, initialValues) > -1)
-                return 1;
-            else
+            long id = mDb.replace(DATABASE_TABLE, null, initialValues);
+            if (id < 0)
                 return 0;
+            SQLiteStatement grams = compileGramInsert();
+            try {
+                indexName(grams, id, path.getName());
+            } finally {
+                grams.close();
+            }
+            return 1;
         } catch (Exception e) {
             //Logger.LogError("Couldn't write to Files DB.", e);
             return 0;
         }
     }
 
+    /**
+     * Returns every folder whose listing has been cached, mapped to its
+     * modified time when it was listed.
+     */
+    public synchronized HashMap<String, Long> fetchFolders() {
+        HashMap<String, Long> ret = new HashMap<String, Long>();
+        open();
+        if (mDb == null)
+            return ret;
+        Cursor c = null;
+        try {
+            c = mDb.query(FOLDERS_TABLE, new String[] {
+                    KEY_PATH, KEY_MTIME
+            }, null, null, null, null, null);
+            while (c.moveToNext())
+                ret.put(c.getString(0), c.getLong(1));
+        } catch (SQLException e) {
+            Logger.LogError("Couldn't read cached folders.", e);
+        } finally {
+            if (c != null)
+                c.close();
+        }
+        return ret;
+    }
+
+    /**
+     * Remove a folder and everything below it.
+     *
+     * @return Number of file rows removed.
+     */
+    public synchronized int deleteTree(String path) {
+        open();
+        if (mDb == null)
+            return -1;
+        String[] args = new String[] {
+                path, FilenameIndex.escapeLike(path + "/") + "%"
+        };
+        int ret = 0;
+        mDb.beginTransaction();
+        try {
+            ret = mDb.delete(DATABASE_TABLE, KEY_FOLDER + " = ? OR " + KEY_FOLDER
+                    + " LIKE ? ESCAPE '\\'", args);
+            mDb.delete(FOLDERS_TABLE, KEY_PATH + " = ? OR " + KEY_PATH + " LIKE ? ESCAPE '\\'",
+                    args);
+            mDb.setTransactionSuccessful();
+        } catch (SQLException e) {
+            Logger.LogError("Couldn't remove " + path + " from Files DB.", e);
+        } finally {
+            mDb.endTransaction();
+        }
+        return ret;
+    }
+
     public int deleteFolder(OpenPath parent) {
         try {
             if (mDb != null && mDb.isOpen() && parent != null) {
@@ -284,10 +441,18 @@ public class OpenPathDbAdapter {
         if (mDb == null)
             return null;
         try {
-            String where = KEY_NAME + " LIKE '%" + query.replaceAll("'", "''") + "%'";
-            if (folder != null && folder.length() > 0)
-                where += " AND " + KEY_FOLDER + " LIKE '" + folder.replace("'", "''") + "%'";
-            return mDb.query(true, DATABASE_TABLE, KEYS, where, null, null, null,
+            FilenameIndex index = new FilenameIndex(query);
+            ArrayList<String> args = new ArrayList<String>();
+            String where = KEY_NAME + " LIKE ? ESCAPE '\\'";
+            if (index.isIndexed())
+                where = KEY_ID + " IN (" + index.getCandidates(args) + ") AND " + where;
+            args.add(index.getLikePattern());
+            if (folder != null && folder.length() > 0) {
+                where += " AND " + KEY_FOLDER + " LIKE ? ESCAPE '\\'";
+                args.add(FilenameIndex.escapeLike(folder) + "%");
+            }
+            return mDb.query(true, DATABASE_TABLE, KEYS, where,
+                    args.toArray(new String[args.size()]), null, null,
                     getSortString(OpenPath.Sorting), null);
         } catch (Exception e) {
             Logger.LogError("Couldn't search for \"" + query + "\"", e);
@@ -309,9 +474,11 @@ public class OpenPathDbAdapter {
     }
 
     public int clear() {
-        if (mDb != null && mDb.isOpen())
+        if (mDb != null && mDb.isOpen()) {
+            mDb.delete(FilenameIndex.TABLE, null, null);
+            mDb.delete(FOLDERS_TABLE, null, null);
             return mDb.delete(DATABASE_TABLE, null, null);
-        else
+        } else
             return -1;
     }
 
@@ -0,0 +1,110 @@
+
+package org.brandroid.openmanager.data;
+
+import java.util.ArrayList;
+
+import org.brandroid.openmanager.activities.OpenExplorer;
+import org.brandroid.openmanager.data.OpenPath.OpenContentUpdateListener;
+
+/**
+ * Passes entries from a listing in progress on to another listener in
+ * batches. The first entry goes out at once so something shows right away,
+ * then entries are held until a batch fills or a short interval passes, so
+ * a listing that finds entries one line at a time doesn't wake the UI for
+ * each of them. Held entries are sent when the interval is up even if no
+ * more arrive, since the next reply from a slow server may be seconds away.
+ * <p>
+ * That timer runs on the UI thread while everything else is sent from the
+ * listing thread, so each batch is drained and sent under one lock. A batch
+ * can then never arrive after {@link #doneUpdating()}.
+ */
+public class BatchedUpdateListener implements OpenContentUpdateListener {
+    public static final int BATCH_SIZE = 64;
+    public static final long BATCH_INTERVAL = 100;
+
+    private final OpenContentUpdateListener mListener;
+    private final ArrayList<OpenPath> mBatch = new ArrayList<OpenPath>();
+    /** Held from draining a batch until the listener has it. */
+    private final Object mDeliver = new Object();
+    private long mLastFlush = 0;
+    private boolean mFlushPosted = false;
+
+    private final Runnable mFlush = new Runnable() {
+        public void run() {
+            synchronized (mBatch) {
+                mFlushPosted = false;
+            }
+            flush();
+        }
+    };
+
+    public BatchedUpdateListener(OpenContentUpdateListener listener) {
+        mListener = listener;
+    }
+
+    public void addContentPath(OpenPath... files) {
+        synchronized (mDeliver) {
+            OpenPath[] batch = null;
+            synchronized (mBatch) {
+                for (OpenPath file : files)
+                    if (file != null)
+                        mBatch.add(file);
+                long now = System.currentTimeMillis();
+                if (mBatch.size() >= BATCH_SIZE || now - mLastFlush >= BATCH_INTERVAL) {
+                    batch = drain();
+                    mLastFlush = now;
+                } else if (!mBatch.isEmpty() && !mFlushPosted) {
+                    mFlushPosted = true;
+                    OpenExplorer.getHandler().postDelayed(mFlush,
+                            BATCH_INTERVAL - (now - mLastFlush));
+                }
+            }
+            if (batch != null && batch.length > 0)
+                mListener.addContentPath(batch);
+        }
+    }
+
+    private OpenPath[] drain() {
+        OpenPath[] ret = mBatch.toArray(new OpenPath[mBatch.size()]);
+        mBatch.clear();
+        return ret;
+    }
+
+    /**
+     * Send any entries still held.
+     */
+    public void flush() {
+        synchronized (mDeliver) {
+            OpenPath[] batch;
+            synchronized (mBatch) {
+                batch = drain();
+                mLastFlush = System.currentTimeMillis();
+            }
+            if (batch.length > 0)
+                mListener.addContentPath(batch);
+        }
+    }
+
+    private void cancelFlush() {
+        synchronized (mBatch) {
+            OpenExplorer.getHandler().removeCallbacks(mFlush);
+            mFlushPosted = false;
+        }
+    }
+
+    public void doneUpdating() {
+        synchronized (mDeliver) {
+            cancelFlush();
+            flush();
+            mListener.doneUpdating();
+        }
+    }
+
+    public void onException(Exception e) {
+        synchronized (mDeliver) {
+            cancelFlush();
+            flush();
+            mListener.onException(e);
+        }
+    }
+}
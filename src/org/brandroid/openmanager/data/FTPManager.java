@@ -143,6 +143,21 @@ public class FTPManager {
         return ftpClients.get(mHost);
     }
 
+    /**
+     * Open a binary mode connection that is not shared with other paths on
+     * this host. The caller is responsible for disconnecting it.
+     */
+    public FTPClient openClient() throws IOException {
+        FTPClient client = new FTPClient();
+        client.connect(mHost, mPort);
+        if (!client.login(mUser, mPassword)) {
+            client.disconnect();
+            throw new IOException("Unable to log in to FTP. Invalid credentials?");
+        }
+        client.setFileType(FTP.BINARY_FILE_TYPE);
+        return client;
+    }
+
     public Boolean connect() throws IOException {
         long now = new Date().getTime();
         if (now - lastConnect < 500) {
@@ -213,10 +228,12 @@ public class FTPManager {
 
     @SuppressLint("NewApi")
     public FTPFile[] listFiles() throws IOException {
-        if (connect()) {
-            FTPFile[] ret = getClient(false).listFiles();
-            return ret;
-        } else if(Build.VERSION.SDK_INT > 8)
+        // clients are shared by host, and connect() changes its directory
+        synchronized (OpenNetworkPath.getListLock("ftp://" + mHost)) {
+            if (connect())
+                return getClient(false).listFiles();
+        }
+        if(Build.VERSION.SDK_INT > 8)
             throw new IOException("Unable to list files due to invalid connection.",
                     new Throwable());
         else
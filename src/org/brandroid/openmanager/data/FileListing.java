@@ -0,0 +1,358 @@
+
+package org.brandroid.openmanager.data;
+
+import java.io.File;
+import java.util.ArrayList;
+import java.util.Arrays;
+import java.util.Collection;
+import java.util.HashSet;
+
+import org.brandroid.openmanager.util.SortType;
+import org.brandroid.openmanager.util.SortType.Type;
+
+/**
+ * One local folder's entries, stored by column: the names share a single
+ * char table, and sizes, modified times and flags sit in primitive arrays.
+ * An entry costs a few dozen bytes instead of an OpenFile, a File and a full
+ * path string, so folders with tens of thousands of files stay small and
+ * binding them creates no long-lived objects. OpenFile objects are created
+ * only when asked for with {@link #getPath(int)}.
+ * <p>
+ * Positions are in display order, after hidden entries and files have been
+ * filtered out and the rest sorted by {@link #sort(SortType, boolean, boolean)}.
+ */
+public final class FileListing {
+    private static final byte FLAG_DIRECTORY = 1;
+    private static final byte FLAG_HIDDEN = 2;
+
+    private final OpenFile mFolder;
+    private final int mCount;
+    private final char[] mNames;
+    /** End of each name in mNames. Each name starts where the last ends. */
+    private final int[] mNameEnds;
+    private final long[] mSizes;
+    private final long[] mModified;
+    private final byte[] mFlags;
+    /** Settings of the last {@link #sort(SortType, boolean, boolean)}. */
+    private Type mSortType = null;
+    private boolean mFoldersFirst, mShowHidden, mShowFiles;
+    /** Indexes of the visible entries, in display order. */
+    private volatile int[] mOrder;
+
+    private FileListing(OpenFile folder, String[] names) {
+        this(folder, null, null, names);
+    }
+
+    /**
+     * Copy the entries of old at the given indexes, then read the named
+     * entries from disk.
+     */
+    private FileListing(OpenFile folder, FileListing old, int[] keep, String[] names) {
+        int kept = keep != null ? keep.length : 0;
+        mFolder = folder;
+        mCount = kept + names.length;
+        mNameEnds = new int[mCount];
+        mSizes = new long[mCount];
+        mModified = new long[mCount];
+        mFlags = new byte[mCount];
+        int chars = 0;
+        for (int i = 0; i < kept; i++)
+            chars += old.getNameLength(keep[i]);
+        for (String name : names)
+            chars += name.length();
+        mNames = new char[chars];
+        int end = 0;
+        for (int i = 0; i < kept; i++) {
+            int j = keep[i], start = j > 0 ? old.mNameEnds[j - 1] : 0;
+            System.arraycopy(old.mNames, start, mNames, end, old.mNameEnds[j] - start);
+            end += old.mNameEnds[j] - start;
+            mNameEnds[i] = end;
+            mSizes[i] = old.mSizes[j];
+            mModified[i] = old.mModified[j];
+            mFlags[i] = old.mFlags[j];
+        }
+        File dir = folder.getFile();
+        boolean mnt = "/mnt".equals(dir.getPath());
+        for (int i = kept; i < mCount; i++) {
+            String name = names[i - kept];
+            name.getChars(0, name.length(), mNames, end);
+            end += name.length();
+            mNameEnds[i] = end;
+            File f = new File(dir, name);
+            byte flags = 0;
+            if (f.isDirectory())
+                flags |= FLAG_DIRECTORY;
+            if (name.startsWith(".") || (mnt && new OpenFile(f).isHidden()))
+                flags |= FLAG_HIDDEN;
+            mFlags[i] = flags;
+            mSizes[i] = f.length();
+            mModified[i] = f.lastModified();
+        }
+        int[] order = new int[mCount];
+        for (int i = 0; i < mCount; i++)
+            order[i] = i;
+        mOrder = order;
+    }
+
+    /**
+     * List a local folder. Entries are in directory order until sorted.
+     *
+     * @return null if the folder could not be read.
+     */
+    public static FileListing list(OpenFile folder) {
+        String[] names = null;
+        try {
+            names = folder.getFile().list();
+        } catch (SecurityException e) {
+        }
+        return names != null ? new FileListing(folder, names) : null;
+    }
+
+    /**
+     * Returns a copy with the named entries read again from disk. Entries
+     * that no longer exist are dropped and new ones are added, and every
+     * other entry is copied without touching the disk. If this listing was
+     * sorted, the copy keeps its order: only the new entries are sorted, and
+     * they are merged in among the rest.
+     */
+    public FileListing update(Collection<String> changed) {
+        HashSet<String> names = new HashSet<String>(changed);
+        int[] keep = new int[mCount];
+        int kept = 0;
+        for (int i = 0; i < mCount; i++)
+            if (!names.contains(getEntryName(i)))
+                keep[kept++] = i;
+        if (kept < mCount) {
+            int[] tmp = new int[kept];
+            System.arraycopy(keep, 0, tmp, 0, kept);
+            keep = tmp;
+        }
+        File dir = mFolder.getFile();
+        ArrayList<String> found = new ArrayList<String>();
+        for (String name : names)
+            if (new File(dir, name).exists())
+                found.add(name);
+        FileListing ret = new FileListing(mFolder, this, keep,
+                found.toArray(new String[found.size()]));
+        if (mSortType != null)
+            ret.mergeOrder(this, keep);
+        return ret;
+    }
+
+    /**
+     * Order an updated copy like old, whose entries at keep are the first
+     * entries of this one.
+     */
+    private void mergeOrder(FileListing old, int[] keep) {
+        int[] order = old.mOrder;
+        int[] moved = new int[old.mCount];
+        Arrays.fill(moved, -1);
+        for (int i = 0; i < keep.length; i++)
+            moved[keep[i]] = i;
+        int[] kept = new int[order.length];
+        int nk = 0;
+        for (int i : order)
+            if (moved[i] >= 0)
+                kept[nk++] = moved[i];
+        int[] added = new int[mCount - keep.length];
+        int na = 0;
+        for (int i = keep.length; i < mCount; i++)
+            if (isShown(i, old.mShowHidden, old.mShowFiles))
+                added[na++] = i;
+        Type type = old.mSortType;
+        boolean foldersFirst = old.mFoldersFirst;
+        boolean sorted = type != Type.NONE || foldersFirst;
+        if (sorted)
+            mergeSort(added.clone(), added, 0, na, type, foldersFirst);
+        int[] merged = new int[nk + na];
+        for (int i = 0, p = 0, q = 0; i < merged.length; i++) {
+            if (q >= na || (p < nk && (!sorted
+                    || compare(kept[p], added[q], type, foldersFirst) <= 0)))
+                merged[i] = kept[p++];
+            else
+                merged[i] = added[q++];
+        }
+        mSortType = type;
+        mFoldersFirst = foldersFirst;
+        mShowHidden = old.mShowHidden;
+        mShowFiles = old.mShowFiles;
+        mOrder = merged;
+    }
+
+    /**
+     * Returns true if the order was made with these settings.
+     */
+    public boolean isSorted(SortType sort, boolean showHidden, boolean showFiles) {
+        return sort.getType() == mSortType && sort.foldersFirst() == mFoldersFirst
+                && showHidden == mShowHidden && showFiles == mShowFiles;
+    }
+
+    public OpenFile getFolder() {
+        return mFolder;
+    }
+
+    /**
+     * Returns the number of visible entries.
+     */
+    public int size() {
+        return mOrder.length;
+    }
+
+    private int getIndex(int position) {
+        return mOrder[position];
+    }
+
+    public String getName(int position) {
+        return getEntryName(getIndex(position));
+    }
+
+    private String getEntryName(int i) {
+        int start = i > 0 ? mNameEnds[i - 1] : 0;
+        return new String(mNames, start, mNameEnds[i] - start);
+    }
+
+    private int getNameLength(int i) {
+        return mNameEnds[i] - (i > 0 ? mNameEnds[i - 1] : 0);
+    }
+
+    public long length(int position) {
+        return mSizes[getIndex(position)];
+    }
+
+    public long lastModified(int position) {
+        return mModified[getIndex(position)];
+    }
+
+    public boolean isDirectory(int position) {
+        return (mFlags[getIndex(position)] & FLAG_DIRECTORY) != 0;
+    }
+
+    public boolean isHidden(int position) {
+        return (mFlags[getIndex(position)] & FLAG_HIDDEN) != 0;
+    }
+
+    /**
+     * Create the OpenFile for an entry.
+     */
+    public OpenFile getPath(int position) {
+        return new OpenFile(mFolder, getName(position));
+    }
+
+    /**
+     * Filter and sort the entries. The new order replaces the old one in a
+     * single step, so this may run off the UI thread while it binds.
+     */
+    public void sort(SortType sort, boolean showHidden, boolean showFiles) {
+        int n = 0;
+        int[] order = new int[mCount];
+        for (int i = 0; i < mCount; i++)
+            if (isShown(i, showHidden, showFiles))
+                order[n++] = i;
+        if (n < mCount) {
+            int[] tmp = new int[n];
+            System.arraycopy(order, 0, tmp, 0, n);
+            order = tmp;
+        }
+        if (sort.getType() != Type.NONE || sort.foldersFirst())
+            mergeSort(order.clone(), order, 0, n, sort.getType(), sort.foldersFirst());
+        mSortType = sort.getType();
+        mFoldersFirst = sort.foldersFirst();
+        mShowHidden = showHidden;
+        mShowFiles = showFiles;
+        mOrder = order;
+    }
+
+    private boolean isShown(int i, boolean showHidden, boolean showFiles) {
+        if (!showHidden && (mFlags[i] & FLAG_HIDDEN) != 0)
+            return false;
+        return showFiles || (mFlags[i] & FLAG_DIRECTORY) != 0;
+    }
+
+    /**
+     * Stable sort of dst[lo, hi), using src as scratch space. Both must hold
+     * the same values on entry.
+     */
+    private void mergeSort(int[] src, int[] dst, int lo, int hi, Type type,
+            boolean foldersFirst) {
+        if (hi - lo < 8) {
+            for (int i = lo + 1; i < hi; i++) {
+                int t = dst[i];
+                int j = i;
+                for (; j > lo && compare(dst[j - 1], t, type, foldersFirst) > 0; j--)
+                    dst[j] = dst[j - 1];
+                dst[j] = t;
+            }
+            return;
+        }
+        int mid = (lo + hi) >>> 1;
+        mergeSort(dst, src, lo, mid, type, foldersFirst);
+        mergeSort(dst, src, mid, hi, type, foldersFirst);
+        for (int i = lo, p = lo, q = mid; i < hi; i++) {
+            if (q >= hi || (p < mid && compare(src[p], src[q], type, foldersFirst) <= 0))
+                dst[i] = src[p++];
+            else
+                dst[i] = src[q++];
+        }
+    }
+
+    /**
+     * Same order as {@link org.brandroid.openmanager.util.SortKey}.
+     */
+    private int compare(int a, int b, Type type, boolean foldersFirst) {
+        if (foldersFirst) {
+            boolean da = (mFlags[a] & FLAG_DIRECTORY) != 0;
+            boolean db = (mFlags[b] & FLAG_DIRECTORY) != 0;
+            if (da != db)
+                return da ? -1 : 1;
+        }
+        switch (type) {
+            case ALPHA_DESC:
+                return compareNames(b, a, false);
+            case SIZE_DESC:
+                return compareLongs(mSizes[a], mSizes[b]);
+            case SIZE:
+                return compareLongs(mSizes[b], mSizes[a]);
+            case DATE_DESC:
+                return compareLongs(mModified[a], mModified[b]);
+            case DATE:
+                return compareLongs(mModified[b], mModified[a]);
+            case TYPE:
+                return compareNames(a, b, true);
+            case NONE:
+                return 0;
+            default:
+                return compareNames(a, b, false);
+        }
+    }
+
+    private static int compareLongs(long a, long b) {
+        return a < b ? -1 : (a == b ? 0 : 1);
+    }
+
+    /**
+     * Compare two names (or their extensions) ignoring case, without
+     * creating strings.
+     */
+    private int compareNames(int a, int b, boolean extension) {
+        int pa = a > 0 ? mNameEnds[a - 1] : 0, ea = mNameEnds[a];
+        int pb = b > 0 ? mNameEnds[b - 1] : 0, eb = mNameEnds[b];
+        if (extension) {
+            pa = getExtensionStart(pa, ea);
+            pb = getExtensionStart(pb, eb);
+        }
+        while (pa < ea && pb < eb) {
+            char ca = Character.toLowerCase(mNames[pa++]);
+            char cb = Character.toLowerCase(mNames[pb++]);
+            if (ca != cb)
+                return ca - cb;
+        }
+        return (ea - pa) - (eb - pb);
+    }
+
+    private int getExtensionStart(int start, int end) {
+        for (int i = end - 1; i >= start; i--)
+            if (mNames[i] == '.')
+                return i + 1;
+        return start;
+    }
+}
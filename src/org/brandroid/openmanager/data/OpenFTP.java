@@ -1,6 +1,7 @@
 
 package org.brandroid.openmanager.data;
 
+import java.io.FilterInputStream;
 import java.io.IOException;
 import java.io.InputStream;
 import java.io.OutputStream;
@@ -20,7 +21,8 @@ import android.app.Activity;
 import android.database.Cursor;
 import android.net.Uri;
 
-public class OpenFTP extends OpenNetworkPath implements OpenNetworkPath.PipeNeeded {
+public class OpenFTP extends OpenNetworkPath implements OpenNetworkPath.PipeNeeded,
+        OpenNetworkPath.ResumableDownload, OpenPath.OpenPathMovable {
     private FTPFile mFile;
     private final FTPManager mManager;
     private final ArrayList<OpenFTP> mChildren = new ArrayList<OpenFTP>();
@@ -206,6 +208,17 @@ public class OpenFTP extends OpenNetworkPath implements OpenNetworkPath.PipeNeed
         return null;
     }
 
+    @Override
+    public OpenFTP copyForListing() {
+        if (mManager == null)
+            return null;
+        OpenFTP ret = new OpenFTP(mParent, mFile, new FTPManager(mManager,
+                mManager.getBasePath()), getUserInfo());
+        ret.mPath = mPath;
+        ret.setPort(getPort());
+        return ret;
+    }
+
     @Override
     public OpenFTP[] listFiles() throws IOException {
         if (Thread.currentThread().equals(OpenExplorer.UiThread))
@@ -455,6 +468,79 @@ public class OpenFTP extends OpenNetworkPath implements OpenNetworkPath.PipeNeed
         return mManager.isConnected();
     }
 
+    /**
+     * Opens a stream on its own connection, starting at offset via REST.
+     */
+    @Override
+    public InputStream getInputStream(long offset) throws IOException {
+        final FTPClient client = mManager.openClient();
+        InputStream in = null;
+        try {
+            if (offset > 0)
+                client.setRestartOffset(offset);
+            in = client.retrieveFileStream(getUri().getPath());
+            if (in == null)
+                throw new IOException("Unable to download from FTP. " + client.getReplyString());
+        } finally {
+            if (in == null)
+                client.disconnect();
+        }
+        return new FilterInputStream(in) {
+            @Override
+            public void close() throws IOException {
+                try {
+                    super.close();
+                    client.completePendingCommand();
+                } finally {
+                    client.disconnect();
+                }
+            }
+        };
+    }
+
+    @Override
+    public boolean isSameVolume(OpenPath intoDir) {
+        if (!(intoDir instanceof OpenFTP) || getHost() == null)
+            return false;
+        OpenFTP dest = (OpenFTP)intoDir;
+        return getHost().equalsIgnoreCase(dest.getHost())
+                && getServerPort() == dest.getServerPort()
+                && getServerUser().equals(dest.getServerUser());
+    }
+
+    /**
+     * Returns the port in the path, falling back to {@link #getPort()}, since
+     * listed children don't always have theirs set.
+     */
+    private int getServerPort() {
+        int port = getUri() != null ? getUri().getPort() : -1;
+        return port > 0 ? port : getPort();
+    }
+
+    private String getServerUser() {
+        String user = mManager != null ? mManager.getUser() : null;
+        return user != null ? user : "";
+    }
+
+    @Override
+    public boolean moveTo(OpenPath intoDir, String name) {
+        String from = getUri().getPath();
+        if (from.endsWith("/"))
+            from = from.substring(0, from.length() - 1);
+        String to = intoDir.getUri().getPath();
+        if (!to.endsWith("/"))
+            to += "/";
+        to += name;
+        try {
+            connect();
+            // RNFR / RNTO
+            return mManager.getClient().rename(from, to);
+        } catch (IOException e) {
+            Logger.LogWarning("Unable to rename FTP file. Falling back to copy.", e);
+            return false;
+        }
+    }
+
     @Override
     public boolean syncUpload(OpenFile f, NetworkListener l) {
         Logger.LogDebug("OpenFTP.copyFrom(" + f + ")");
@@ -9,7 +9,9 @@ import java.io.IOException;
 import java.io.InputStream;
 import java.io.InputStreamReader;
 import java.io.OutputStream;
+import java.io.RandomAccessFile;
 import java.lang.ref.WeakReference;
+import java.security.MessageDigest;
 import java.nio.channels.FileChannel;
 import java.util.ArrayList;
 import java.util.Date;
@@ -20,6 +22,7 @@ import org.brandroid.openmanager.adapters.OpenPathDbAdapter;
 import org.brandroid.openmanager.data.OpenNetworkPath.Cancellable;
 import org.brandroid.openmanager.data.OpenPath.*;
 import org.brandroid.openmanager.util.DFInfo;
+import org.brandroid.openmanager.util.PipedCopier;
 import org.brandroid.openmanager.util.SortType;
 import org.brandroid.utils.Logger;
 import org.brandroid.utils.Preferences;
@@ -32,7 +35,7 @@ import android.os.Environment;
 import android.os.StatFs;
 
 @SuppressLint("NewApi")
-public class OpenFile extends OpenPath implements OpenPathCopyable, OpenPathByteIO, OpenStream, SpaceHandler, OpenPath.OpenPathSizable, OpenPath.OpenPathUpdateHandler {
+public class OpenFile extends OpenPath implements OpenPathCopyable, OpenPathByteIO, OpenStream, SpaceHandler, OpenPath.OpenPathSizable, OpenPath.OpenPathUpdateHandler, OpenPathMovable {
     private static final long serialVersionUID = 6436156952322586833L;
     private File mFile;
     private WeakReference<OpenFile[]> mChildren = null;
@@ -48,6 +51,7 @@ public class OpenFile extends OpenPath implements OpenPathCopyable, OpenPathByte
     private Long mTotalSpace = null;
     private Long mUsedSpace = null;
     private static boolean mTryStat = true;
+    private static final long CHANNEL_CHUNK = 8 * 1024 * 1024;
 
     public OpenFile setRoot() {
         // / TODO fix this
@@ -530,20 +534,66 @@ public class OpenFile extends OpenPath implements OpenPathCopyable, OpenPathByte
         return ((FileOutputStream)getOutputStream()).getChannel();
     }
 
+    /**
+     * Returns a new read/write channel for positional writes. Unlike
+     * {@link #getOutputChannel()} the file is not truncated, and the caller
+     * owns (and must close) the channel.
+     */
+    public FileChannel getRandomAccessChannel() throws IOException {
+        return new RandomAccessFile(mFile, "rw").getChannel();
+    }
+
     public boolean copyFrom(OpenFile sourceFile) {
+        return copyFrom(sourceFile, null);
+    }
+
+    /**
+     * Copy a local file using chunked {@link FileChannel} transfers, so the
+     * kernel moves the data without passing it through the Java heap. The
+     * listener is notified (and may cancel) after every chunk.
+     * 
+     * @param sourceFile Local file to copy from.
+     * @param listener Optional progress and cancellation callback.
+     * @return {@code true} if the whole file was copied.
+     */
+    public boolean copyFrom(OpenFile sourceFile, PipedCopier.CopyListener listener) {
+        return copyFrom(sourceFile, listener, null);
+    }
+
+    /**
+     * @param digest If set, data is streamed through user space instead of
+     *            transferred between channels, and the digest is updated with
+     *            every byte written.
+     */
+    public boolean copyFrom(OpenFile sourceFile, PipedCopier.CopyListener listener,
+            MessageDigest digest) {
         try {
             if (!exists())
                 getFile().createNewFile();
         } catch (IOException e) {
         }
+        if (digest != null)
+            return copyHashed(sourceFile, listener, digest);
         boolean ret = false;
         FileChannel source = null;
         FileChannel dest = null;
         try {
-            source = sourceFile.getInputChannel();
-            dest = getOutputChannel();
-            dest.transferFrom(source, 0, source.size());
-            ret = true;
+            source = new FileInputStream(sourceFile.getFile()).getChannel();
+            dest = new FileOutputStream(mFile).getChannel();
+            final long size = source.size();
+            long pos = 0;
+            while (pos < size) {
+                long moved = dest.transferFrom(source, pos, Math.min(CHANNEL_CHUNK, size - pos));
+                if (moved <= 0)
+                    break;
+                pos += moved;
+                if (listener != null) {
+                    listener.onCopyProgress(pos);
+                    if (listener.isCancelled())
+                        break;
+                }
+            }
+            ret = pos >= size;
         } catch (IOException e) {
             Logger.LogError(
                     "Couldn't CopyFrom (" + sourceFile.getPath() + " -> " + getPath() + ")", e);
@@ -564,6 +614,34 @@ public class OpenFile extends OpenPath implements OpenPathCopyable, OpenPathByte
         return ret;
     }
 
+    private boolean copyHashed(OpenFile sourceFile, PipedCopier.CopyListener listener,
+            MessageDigest digest) {
+        InputStream in = null;
+        OutputStream out = null;
+        try {
+            in = new FileInputStream(sourceFile.getFile());
+            out = new FileOutputStream(mFile);
+            long size = sourceFile.length();
+            return new PipedCopier().copy(in, out, -1, listener, digest) >= size
+                    && (listener == null || !listener.isCancelled());
+        } catch (IOException e) {
+            Logger.LogError(
+                    "Couldn't CopyFrom (" + sourceFile.getPath() + " -> " + getPath() + ")", e);
+            return false;
+        } finally {
+            if (in != null)
+                try {
+                    in.close();
+                } catch (IOException e) {
+                }
+            if (out != null)
+                try {
+                    out.close();
+                } catch (IOException e) {
+                }
+        }
+    }
+
     @Override
     public Boolean isHidden() {
         if (mFile.isHidden() || mFile.getName().startsWith("."))
@@ -678,42 +756,56 @@ public class OpenFile extends OpenPath implements OpenPathCopyable, OpenPathByte
         if (file instanceof OpenFile)
             return copyFrom((OpenFile)file);
         try {
-			return copyFrom(file.getInputStream());
-		} catch (IOException e) {
-			// TODO Auto-generated catch block
-			e.printStackTrace();
-		}
+            if (copyFrom(file.getInputStream()))
+                return true;
+        } catch (IOException e) {
+            Logger.LogError("Couldn't open " + file + " to copy to " + getPath(), e);
+        }
+        if (OpenApplication.hasRootAccess())
+            return copyFromAsRoot(file);
         return false;
     }
+
+    /**
+     * For destinations only root can write to: copy the stream to a temp
+     * file, then move it into place through the root shell.
+     */
+    private boolean copyFromAsRoot(OpenStream file) {
+        OpenFileRoot root = new OpenFileRoot(this);
+        OpenFile tmp = root.getTempFile();
+        if (tmp == null)
+            return false;
+        InputStream in = null;
+        try {
+            in = file.getInputStream();
+            return tmp.copyFrom(in) && OpenFileRoot.copy(tmp, root);
+        } catch (IOException e) {
+            Logger.LogError("Couldn't copy " + file + " to " + getPath() + " as root", e);
+            return false;
+        } finally {
+            if (in != null)
+                try {
+                    in.close();
+                } catch (IOException e) {
+                }
+            tmp.delete();
+        }
+    }
     
     private boolean copyFrom(InputStream in)
     {
     	Logger.LogVerbose("copyFrom InputStream on " + getPath());
-        int blen = 4096;
-        byte[] buffer = new byte[blen];
-        int read = 0;
-        int wrote = 0;
         OutputStream os = null;
         try {
             if (!exists())
                 create();
-            os = getOutputStream();
-	        while((read = in.read(buffer, 0, blen)) > -1)
-	        {
-	        	if(read > 0)
-	        	{
-	        		os.write(buffer);
-	        		wrote += buffer.length;
-	        	}
-	        }
-            os.flush();
+            os = new FileOutputStream(mFile);
+            long wrote = new PipedCopier().copy(in, os);
             os.close();
             Logger.LogVerbose("Wrote " + wrote + " bytes to " + getPath());
             return true;
         } catch (IOException e) {
             Logger.LogError("Couldn't write to OpenFile (" + getPath() + ")", e);
-            if(OpenApplication.hasRootAccess())
-                new OpenFileRoot(this).writeBytes(buffer);
         } finally {
             if (os != null)
                 try {
@@ -724,6 +816,25 @@ public class OpenFile extends OpenPath implements OpenPathCopyable, OpenPathByte
         return false;
     }
 
+    @Override
+    public boolean isSameVolume(OpenPath intoDir) {
+        if (!(intoDir instanceof OpenFile))
+            return false;
+        String mine = DFInfo.getMountPoint(getPath());
+        String theirs = DFInfo.getMountPoint(intoDir.getPath());
+        // unknown volumes still get a rename attempt, it just fails across mounts
+        return mine == null || theirs == null || mine.equals(theirs);
+    }
+
+    @Override
+    public boolean moveTo(OpenPath intoDir, String name) {
+        File dest = new File(((OpenFile)intoDir).getFile(), name);
+        if (dest.getAbsolutePath().equals(mFile.getAbsolutePath()))
+            return false;
+        Logger.LogDebug("Moving " + getPath() + " to " + dest.getPath());
+        return mFile.renameTo(dest);
+    }
+
     public static void setTempFileRoot(OpenFile root) {
         mTempDir = root;
     }
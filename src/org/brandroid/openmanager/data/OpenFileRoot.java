@@ -17,6 +17,7 @@ import java.util.regex.Pattern;
 import org.brandroid.openmanager.activities.OpenExplorer;
 import org.brandroid.openmanager.data.OpenNetworkPath.Cancellable;
 import org.brandroid.openmanager.data.OpenPath.*;
+import org.brandroid.openmanager.util.DFInfo;
 import org.brandroid.openmanager.util.FileManager;
 import org.brandroid.utils.Logger;
 import org.brandroid.utils.Utils;
@@ -33,7 +34,7 @@ import android.os.Build;
 import android.os.PatternMatcher;
 
 public class OpenFileRoot extends OpenPath implements OpenPath.OpenPathUpdateHandler,
-        OpenPath.NeedsTempFile, OpenPathByteIO, OpenDynamicPath {
+        OpenPath.NeedsTempFile, OpenPathByteIO, OpenDynamicPath, OpenPathMovable {
 
     private static final long serialVersionUID = -1540464774342269126L;
     private String mPath;
@@ -209,7 +210,9 @@ public class OpenFileRoot extends OpenPath implements OpenPath.OpenPathUpdateHan
             mChildren.get().add(kid);
     }
 
-    public Cancellable list(final OpenPath.OpenContentUpdateListener callback) {
+    public Cancellable list(final OpenPath.OpenContentUpdateListener listener) {
+        // ls reports one line at a time
+        final OpenContentUpdateListener callback = new BatchedUpdateListener(listener);
         mLoaded = false;
         final Thread t = thread(new Runnable() {
             public void run() {
@@ -478,6 +481,44 @@ public class OpenFileRoot extends OpenPath implements OpenPath.OpenPathUpdateHan
         return null;
     }
 
+    /**
+     * Across volumes mv falls back to a copy, which would block with no
+     * progress or cancel, so only known mount points that match count.
+     */
+    @Override
+    public boolean isSameVolume(OpenPath intoDir) {
+        if (!(intoDir instanceof OpenFile || intoDir instanceof OpenFileRoot))
+            return false;
+        String mine = DFInfo.getMountPoint(getPath());
+        String theirs = DFInfo.getMountPoint(intoDir.getPath());
+        return mine != null && mine.equals(theirs);
+    }
+
+    /**
+     * Quote a path for the root shell, so quotes, $ and backticks in file
+     * names are taken literally.
+     */
+    private static String quote(String path) {
+        return "'" + path.replace("'", "'\\''") + "'";
+    }
+
+    @Override
+    public boolean moveTo(OpenPath intoDir, String name) {
+        String src = getPath();
+        if (src.endsWith("/"))
+            src = src.substring(0, src.length() - 1);
+        String dest = intoDir.getPath();
+        if (!dest.endsWith("/"))
+            dest += "/";
+        if (name.endsWith("/"))
+            name = name.substring(0, name.length() - 1);
+        dest += name;
+        if (src.equals(dest))
+            return false;
+        // mv prints nothing on success, so echo a marker we can check for
+        return "ok".equals(execute("mv " + quote(src) + " " + quote(dest) + " && echo ok", false));
+    }
+
     public static boolean copy(final OpenPath src, final OpenPath dest) {
         return RootTools.copyFile(src.getPath(), dest.getPath(), false, false);
     }
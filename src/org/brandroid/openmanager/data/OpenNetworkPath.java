@@ -4,6 +4,8 @@ package org.brandroid.openmanager.data;
 import java.io.IOException;
 import java.io.InputStream;
 import java.io.OutputStream;
+import java.util.Hashtable;
+
 import org.brandroid.openmanager.fragments.TextEditorFragment;
 import org.brandroid.openmanager.activities.OpenExplorer;
 import org.brandroid.openmanager.data.OpenPath.*;
@@ -27,6 +29,7 @@ public abstract class OpenNetworkPath extends OpenPath implements NeedsTempFile,
     protected int mPort = -1;
     private final boolean DEBUG = OpenExplorer.IS_DEBUG_BUILD && false;
     private OpenServer mServer;
+    private static final Hashtable<String, Object> mListLocks = new Hashtable<String, Object>();
 
     public interface NetworkListener {
         public static final NetworkListener DefaultListener = new NetworkListener() {
@@ -137,9 +140,13 @@ public abstract class OpenNetworkPath extends OpenPath implements NeedsTempFile,
         return true;
     }
     
+    /**
+     * Images on servers that can stream them get thumbnails, see
+     * {@link org.brandroid.openmanager.util.ThumbnailCreator#canThumbRemote(OpenPath)}.
+     */
     @Override
     public boolean hasThumbnail() {
-        return false;
+        return this instanceof ResumableDownload && isImageFile();
     }
 
     /**
@@ -206,6 +213,27 @@ public abstract class OpenNetworkPath extends OpenPath implements NeedsTempFile,
         });
     }
     
+    /**
+     * Paths that can open a read stream part way into the remote file, so an
+     * interrupted download can pick up where it left off. Each stream uses
+     * its own connection and may be read alongside other streams.
+     */
+    public interface ResumableDownload {
+        public InputStream getInputStream(long offset) throws IOException;
+    }
+
+    /**
+     * Paths whose server can hash a file, so a download can be checked
+     * against the source without reading it a second time.
+     */
+    public interface RemoteChecksum {
+        /**
+         * @return Lowercase hex SHA-1 of the remote file, or null if the server
+         *         is unable to provide one.
+         */
+        public String getRemoteSha1() throws IOException;
+    }
+
     public interface PipeNeeded {
         public boolean isConnected() throws IOException;
         public void connect() throws IOException;
@@ -323,6 +351,28 @@ public abstract class OpenNetworkPath extends OpenPath implements NeedsTempFile,
 
     public abstract OpenNetworkPath[] getChildren();
 
+    /**
+     * Returns a new object for this path that shares its connection but not
+     * its children, so it can be listed in the background without changing a
+     * listing that is on screen, or null if this type can't do that.
+     */
+    public OpenNetworkPath copyForListing() {
+        return null;
+    }
+
+    /**
+     * Lock held while listing over a connection that every path on the server
+     * shares, so a background listing can't interleave with a foreground one.
+     */
+    protected static Object getListLock(String server) {
+        synchronized (mListLocks) {
+            Object lock = mListLocks.get(server);
+            if (lock == null)
+                mListLocks.put(server, lock = new Object());
+            return lock;
+        }
+    }
+
     @Override
     public String toString() {
         return getName(super.toString());
@@ -20,6 +20,8 @@ import org.brandroid.openmanager.data.OpenNetworkPath.CloudCompletionListener;
 import org.brandroid.openmanager.interfaces.OpenApp;
 import org.brandroid.openmanager.util.FileManager;
 import org.brandroid.openmanager.util.MimeTypes;
+import org.brandroid.openmanager.util.PipedCopier;
+import org.brandroid.openmanager.util.SortKey;
 import org.brandroid.openmanager.util.SortType;
 import org.brandroid.openmanager.util.ThumbnailCreator;
 import org.brandroid.utils.Logger;
@@ -399,7 +401,9 @@ public abstract class OpenPath implements Serializable, Parcelable, Comparable<O
     }
 
     /**
-     * Compare two OpenPath files, with sorting taken into account
+     * Compare two OpenPath files, with sorting taken into account. To sort a
+     * whole listing, use {@link SortKey#sort(List, SortType)}, which reads
+     * each path once instead of on every comparison.
      * 
      * @param fa First OpenPath
      * @param fb Second OpenPath
@@ -415,60 +419,7 @@ public abstract class OpenPath implements Serializable, Parcelable, Comparable<O
                 return 0;
             if (fb == null || fa == null)
                 return 0;
-            if (Sorting.foldersFirst()) {
-                if (fb.isDirectory() && !fa.isDirectory())
-                    return 1;
-                if (fa.isDirectory() && !fb.isDirectory())
-                    return -1;
-            }
-            String a = fa.getName();
-            String b = fb.getName();
-            Long sa = fa.length();
-            Long sb = fb.length();
-            Long ma = fa.lastModified();
-            Long mb = fb.lastModified();
-            if (a == null && b != null)
-                return 1;
-            if (a == null || b == null)
-                return 0;
-            switch (Sorting.getType()) {
-                case ALPHA_DESC:
-                    return b.toLowerCase().compareTo(a.toLowerCase());
-                case ALPHA:
-                    return a.toLowerCase().compareTo(b.toLowerCase());
-                case SIZE_DESC:
-                    if (sa == null && sb != null)
-                        return 1;
-                    if (sa == null || sb == null)
-                        return 0;
-                    return sa.compareTo(sb);
-                case SIZE:
-                    if (sb == null && sa != null)
-                        return 1;
-                    if (sa == null || sb == null)
-                        return 0;
-                    return sb.compareTo(sa);
-                case DATE_DESC:
-                    if (ma == null && mb != null)
-                        return 1;
-                    if (ma == null || mb == null)
-                        return 0;
-                    return ma.compareTo(mb);
-                case DATE:
-                    if (mb == null && ma != null)
-                        return 1;
-                    if (ma == null || mb == null)
-                        return 0;
-                    return mb.compareTo(ma);
-                case TYPE:
-                    String ea = a.substring(a.lastIndexOf(".") + 1, a.length()).toLowerCase();
-                    String eb = b.substring(b.lastIndexOf(".") + 1, b.length()).toLowerCase();
-                    return ea.compareTo(eb);
-                case NONE:
-                    return 0;
-                default:
-                    return a.toLowerCase().compareTo(b.toLowerCase());
-            }
+            return SortKey.compare(fa, fb, Sorting);
         } catch (Exception e) {
             Logger.LogError("Unable to sort.", e);
             return 0;
@@ -933,6 +884,31 @@ public abstract class OpenPath implements Serializable, Parcelable, Comparable<O
         public boolean copyTo(OpenStream dest) throws IOException;
     }
 
+    /**
+     * Interface for OpenPath objects that can be moved without copying any
+     * data when the destination is on the same volume or server.
+     */
+    public interface OpenPathMovable {
+        /**
+         * Indicates whether {@link #moveTo} may be attempted for a destination.
+         * 
+         * @param intoDir Destination directory.
+         * @return {@code true} if destination shares a volume or server with
+         *         this path.
+         */
+        public boolean isSameVolume(OpenPath intoDir);
+
+        /**
+         * Rename this path into another directory.
+         * 
+         * @param intoDir Destination directory.
+         * @param name Name to use within destination directory.
+         * @return {@code true} if the rename succeeded. Callers should fall
+         *         back to copy and delete if not.
+         */
+        public boolean moveTo(OpenPath intoDir, String name);
+    }
+
     /**
      * Interface to use when getOutputStream() is not preferable
      */
@@ -1038,6 +1014,19 @@ public abstract class OpenPath implements Serializable, Parcelable, Comparable<O
         return null;
     }
 
+    /**
+     * Get static reference of Database adapter regardless of
+     * {@link #AllowDBCache}, for the file index kept by FileScannerService.
+     * 
+     * @param context Used to create the adapter if none has been set.
+     * @return OpenPathDbAdapter
+     */
+    public static synchronized OpenPathDbAdapter getIndexDb(Context context) {
+        if (mDb == null)
+            mDb = new OpenPathDbAdapter(context.getApplicationContext());
+        return mDb;
+    }
+
     /**
      * Explicitly close the cache Database adapter.
      */
@@ -1303,25 +1292,29 @@ public abstract class OpenPath implements Serializable, Parcelable, Comparable<O
 
     public static void copyStreams(InputStream in, OutputStream out, boolean doCloseInput,
             boolean doCloseOutput, final ProgressUpdateListener progress) throws IOException {
-        byte[] buffer = new byte[2048];
-        int count = 0;
-        int total = 0;
-        while ((count = in.read(buffer)) != -1)
-        {
-            if (progress.isCancelled())
-                break;
-            out.write(buffer, 0, count);
-            total += count;
-            if (progress != null)
-            {
-                final int t = total;
-                OpenExplorer.getHandler().post(new Runnable() {
-                    public void run() {
-                        progress.onProgressUpdate(t);
-                    }
-                });
-            }
+        try {
+            new PipedCopier().copy(in, out, -1, progress == null ? null
+                    : new PipedCopier.CopyListener() {
+                        public void onCopyProgress(long bytes) {
+                            final int t = (int)bytes;
+                            OpenExplorer.getHandler().post(new Runnable() {
+                                public void run() {
+                                    progress.onProgressUpdate(t);
+                                }
+                            });
+                        }
+
+                        public boolean isCancelled() {
+                            return progress.isCancelled();
+                        }
+                    });
+        } finally {
+            closeStreams(in, out, doCloseInput, doCloseOutput);
         }
+    }
+
+    private static void closeStreams(InputStream in, OutputStream out, boolean doCloseInput,
+            boolean doCloseOutput) {
         if (doCloseInput)
             try {
                 if (in != null)
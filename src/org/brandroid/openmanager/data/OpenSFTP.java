@@ -1,6 +1,7 @@
 
 package org.brandroid.openmanager.data;
 
+import java.io.FilterInputStream;
 import java.io.IOException;
 import java.io.InputStream;
 import java.io.OutputStream;
@@ -19,6 +20,7 @@ import org.brandroid.openmanager.util.SimpleUserInfo;
 import org.brandroid.openmanager.util.SortType;
 import org.brandroid.utils.Logger;
 
+import com.jcraft.jsch.ChannelExec;
 import com.jcraft.jsch.ChannelSftp;
 import com.jcraft.jsch.ChannelSftp.LsEntry;
 import com.jcraft.jsch.JSchException;
@@ -39,7 +41,9 @@ import android.os.Build;
  * @author Brandon Bowles
  * @see OpenNetworkPath
  */
-public class OpenSFTP extends OpenNetworkPath implements OpenNetworkPath.PipeNeeded {
+public class OpenSFTP extends OpenNetworkPath implements OpenNetworkPath.PipeNeeded,
+        OpenNetworkPath.ResumableDownload, OpenNetworkPath.RemoteChecksum,
+        OpenPath.OpenPathMovable {
     private static final long serialVersionUID = 3263112609308933024L;
     private long filesize = 0l;
     private Session mSession = null;
@@ -253,14 +257,18 @@ public class OpenSFTP extends OpenNetworkPath implements OpenNetworkPath.PipeNee
     public OpenPath[] listFiles() throws IOException {
         if(Thread.currentThread().equals(OpenExplorer.UiThread)) return getChildren();
         try {
-            connect();
-            String lsPath = mRemotePath.replace(mChannel.pwd() + "/", "");
-            if (lsPath.equals(""))
-                lsPath = ".";
-            else
-                lsPath += "/";
-            Logger.LogVerbose("ls " + lsPath);
-            Vector<LsEntry> vv = mChannel.ls(lsPath);
+            Vector<LsEntry> vv;
+            // the session and channel are shared with the rest of the server
+            synchronized (getListLock("sftp://" + mUser + "@" + mHost + ":" + getPort())) {
+                connect();
+                String lsPath = mRemotePath.replace(mChannel.pwd() + "/", "");
+                if (lsPath.equals(""))
+                    lsPath = ".";
+                else
+                    lsPath += "/";
+                Logger.LogVerbose("ls " + lsPath);
+                vv = mChannel.ls(lsPath);
+            }
             mChildren = new OpenSFTP[vv.size()];
             int i = 0;
             for (LsEntry item : vv) {
@@ -291,6 +299,20 @@ public class OpenSFTP extends OpenNetworkPath implements OpenNetworkPath.PipeNee
         return mChildren;
     }
 
+    @Override
+    public OpenSFTP copyForListing() {
+        OpenSFTP ret = new OpenSFTP(mHost, mUser, mRemotePath, mUserInfo);
+        ret.setPort(getPort());
+        ret.mParent = mParent;
+        ret.mAttrs = mAttrs;
+        ret.mName = mName;
+        ret.mSize = mSize;
+        ret.mModified = mModified;
+        ret.mSession = mSession;
+        ret.mChannel = mChannel;
+        return ret;
+    }
+
     @Override
     public Boolean isDirectory() {
         return mAttrs != null ? mAttrs.isDir() : true;
@@ -560,6 +582,100 @@ public class OpenSFTP extends OpenNetworkPath implements OpenNetworkPath.PipeNee
         mChildren = null;
     }
 
+    /**
+     * Opens a dedicated channel on the shared session, since ChannelSftp can
+     * only service one transfer at a time.
+     */
+    @Override
+    public InputStream getInputStream(long offset) throws IOException {
+        // connect() may reset mRemotePath to the working directory
+        String path = getUri().getPath();
+        if (mSession == null || !mSession.isConnected())
+            connect();
+        final ChannelSftp channel;
+        try {
+            channel = (ChannelSftp)mSession.openChannel("sftp");
+            channel.connect();
+        } catch (JSchException e) {
+            throw new IOException("JSchException while opening SFTP channel (" + path + ")");
+        }
+        try {
+            return new FilterInputStream(channel.get(path, null, offset)) {
+                @Override
+                public void close() throws IOException {
+                    try {
+                        super.close();
+                    } finally {
+                        channel.disconnect();
+                    }
+                }
+            };
+        } catch (SftpException e) {
+            channel.disconnect();
+            throw new IOException("SftpException while trying to get SFTP file (" + path + ")");
+        }
+    }
+
+    /**
+     * Runs sha1sum on the server over an exec channel.
+     */
+    @Override
+    public String getRemoteSha1() throws IOException {
+        String path = getUri().getPath();
+        if (mSession == null || !mSession.isConnected())
+            connect();
+        ChannelExec channel = null;
+        try {
+            channel = (ChannelExec)mSession.openChannel("exec");
+            channel.setCommand("sha1sum -- '" + path.replace("'", "'\\''") + "'");
+            InputStream in = channel.getInputStream();
+            channel.connect();
+            StringBuilder sb = new StringBuilder();
+            int c;
+            while ((c = in.read()) != -1 && sb.length() < 40 && !Character.isWhitespace(c))
+                sb.append((char)c);
+            String ret = sb.toString().toLowerCase();
+            if (!ret.matches("[0-9a-f]{40}")) {
+                Logger.LogWarning("sha1sum unavailable for " + path);
+                return null;
+            }
+            return ret;
+        } catch (JSchException e) {
+            throw new IOException("JSchException while hashing SFTP file (" + path + ")");
+        } finally {
+            if (channel != null)
+                channel.disconnect();
+        }
+    }
+
+    @Override
+    public boolean isSameVolume(OpenPath intoDir) {
+        if (!(intoDir instanceof OpenSFTP))
+            return false;
+        OpenSFTP dest = (OpenSFTP)intoDir;
+        return mHost.equalsIgnoreCase(dest.getHost()) && getPort() == dest.getPort()
+                && (mUser == null ? dest.getUser() == null : mUser.equals(dest.getUser()));
+    }
+
+    @Override
+    public boolean moveTo(OpenPath intoDir, String name) {
+        String dest = intoDir.getUri().getPath();
+        if (!dest.endsWith("/"))
+            dest += "/";
+        dest += name;
+        // connect() may reset mRemotePath to the working directory
+        String from = getUri().getPath();
+        try {
+            connect();
+            Logger.LogDebug("SFTP rename " + from + " -> " + dest);
+            mChannel.rename(from, dest);
+            return true;
+        } catch (Exception e) {
+            Logger.LogWarning("Unable to rename SFTP file. Falling back to copy.", e);
+            return false;
+        }
+    }
+
     @Override
     public boolean syncUpload(OpenFile f, NetworkListener l) {
         try {
@@ -7,6 +7,8 @@ import jcifs.smb.NtlmPasswordAuthentication;
 import jcifs.smb.SmbAuthException;
 import jcifs.smb.SmbException;
 import jcifs.smb.SmbFile;
+import jcifs.smb.SmbFileFilter;
+import jcifs.smb.SmbRandomAccessFile;
 import java.io.BufferedInputStream;
 import java.io.BufferedOutputStream;
 import java.io.IOException;
@@ -27,7 +29,7 @@ import org.brandroid.utils.Utils;
 import android.database.Cursor;
 import android.net.Uri;
 
-public class OpenSMB extends OpenNetworkPath implements OpenNetworkPath.PipeNeeded, OpenPath.SpaceHandler {
+public class OpenSMB extends OpenNetworkPath implements OpenNetworkPath.PipeNeeded, OpenNetworkPath.ResumableDownload, OpenPath.SpaceHandler, OpenPath.OpenPathMovable, OpenPath.OpenPathUpdateHandler {
     private SmbFile mFile;
     private OpenSMB mParent;
     private OpenSMB[] mChildren = null;
@@ -221,17 +223,59 @@ public class OpenSMB extends OpenNetworkPath implements OpenNetworkPath.PipeNeed
         });
     }
 
+    /**
+     * Stream the listing, passing entries on as each reply from the server
+     * arrives instead of once the whole folder has been read.
+     */
+    public Cancellable list(final OpenContentUpdateListener listener) {
+        return getThreadCancellor(thread(new Runnable() {
+            public void run() {
+                BatchedUpdateListener callback = new BatchedUpdateListener(listener);
+                try {
+                    listFiles(callback);
+                } catch (Exception e) {
+                    callback.onException(e);
+                }
+                callback.doneUpdating();
+            }
+        }));
+    }
+
     @Override
     public OpenSMB[] listFiles() throws IOException {
+        return listFiles(null);
+    }
+
+    /**
+     * @param callback Receives each entry as it is read, if not null.
+     */
+    private OpenSMB[] listFiles(final OpenContentUpdateListener callback) throws IOException {
         if (Thread.currentThread().equals(OpenExplorer.UiThread))
             return getChildren();
-        SmbFile[] kids = null;
+        final ArrayList<OpenSMB> kids = new ArrayList<OpenSMB>();
+        // jcifs calls the filter as each batch of entries arrives
+        SmbFileFilter filter = new SmbFileFilter() {
+            public boolean accept(SmbFile file) throws SmbException {
+                if (Thread.currentThread().isInterrupted())
+                    throw new SmbException("Listing cancelled", new InterruptedException());
+                file.setAuth(mFile.getAuth());
+                OpenSMB smb = new OpenSMB(OpenSMB.this, file);
+                kids.add(smb);
+                // only folders, so a large listing doesn't push the rest
+                // out of the cache
+                if (smb.isDirectory())
+                    FileManager.setOpenCache(smb.getPath(), smb);
+                if (callback != null)
+                    callback.addContentPath(smb);
+                return false;
+            }
+        };
         try {
             getAttributes();
             int opts = SmbFile.ATTR_DIRECTORY | SmbFile.ATTR_SYSTEM;
             if (!ShowHiddenFiles)
                 opts |= SmbFile.ATTR_HIDDEN;
-            kids = mFile.listFiles("*", opts, null, null);
+            mFile.listFiles("*", opts, null, filter);
         } catch (SmbAuthException e) {
             Logger.LogWarning("Unable to authenticate. Trying to get password from Servers.");
             mFile.disconnect();
@@ -239,19 +283,10 @@ public class OpenSMB extends OpenNetworkPath implements OpenNetworkPath.PipeNeed
             URL url = new URL(null, path, Handler.SMB_HANDLER);
             NtlmPasswordAuthentication auth = new NtlmPasswordAuthentication(url.getUserInfo());
             mFile = new SmbFile(mFile.getPath(), auth);
-            kids = mFile.listFiles();
-        }
-        if (kids != null) {
-            mChildren = new OpenSMB[kids.length];
-            for (int i = 0; i < kids.length; i++) {
-                kids[i].setAuth(mFile.getAuth());
-                // Logger.LogDebug(kids[i].getPath() + " = " +
-                // kids[i].length());
-                OpenSMB smb = new OpenSMB(this, kids[i]);
-                mChildren[i] = smb;
-                FileManager.setOpenCache(smb.getPath(), smb);
-            }
+            kids.clear();
+            mFile.listFiles(filter);
         }
+        mChildren = kids.toArray(new OpenSMB[kids.size()]);
         return mChildren;
     }
 
@@ -260,6 +295,16 @@ public class OpenSMB extends OpenNetworkPath implements OpenNetworkPath.PipeNeed
         return mChildren;
     }
 
+    @Override
+    public OpenSMB copyForListing() {
+        OpenSMB ret = new OpenSMB(mFile);
+        ret.mParent = mParent;
+        ret.mAttributes = mAttributes;
+        ret.mSize = mSize;
+        ret.mModified = mModified;
+        return ret;
+    }
+
     @Override
     public Boolean isDirectory() {
         if (mFile.getURL().getPath().endsWith("/"))
@@ -419,6 +464,30 @@ public class OpenSMB extends OpenNetworkPath implements OpenNetworkPath.PipeNeed
         return mFile.getOutputStream();
     }
 
+    @Override
+    public InputStream getInputStream(long offset) throws IOException {
+        // the random access file takes over the handle, so give it its own SmbFile
+        SmbFile file = new SmbFile(mFile.getPath(), mFile.getAuth());
+        final SmbRandomAccessFile raf = new SmbRandomAccessFile(file, "r");
+        raf.seek(offset);
+        return new InputStream() {
+            @Override
+            public int read() throws IOException {
+                return raf.read();
+            }
+
+            @Override
+            public int read(byte[] b, int off, int len) throws IOException {
+                return raf.read(b, off, len);
+            }
+
+            @Override
+            public void close() throws IOException {
+                raf.close();
+            }
+        };
+    }
+
     @Override
     public boolean syncDownload(OpenFile f, NetworkListener l) {
         try {
@@ -492,6 +561,30 @@ public class OpenSMB extends OpenNetworkPath implements OpenNetworkPath.PipeNeed
         return mFile;
     }
 
+    @Override
+    public boolean isSameVolume(OpenPath intoDir) {
+        if (!(intoDir instanceof OpenSMB))
+            return false;
+        SmbFile dest = ((OpenSMB)intoDir).getFile();
+        return getHost().equalsIgnoreCase(((OpenSMB)intoDir).getHost())
+                && mFile.getShare() != null && mFile.getShare().equalsIgnoreCase(dest.getShare());
+    }
+
+    @Override
+    public boolean moveTo(OpenPath intoDir, String name) {
+        try {
+            if (isDirectory() && !name.endsWith("/"))
+                name += "/";
+            SmbFile dest = new SmbFile(((OpenSMB)intoDir).getFile(), name);
+            Logger.LogDebug("Renaming " + mFile.getPath() + " to " + dest.getPath());
+            mFile.renameTo(dest);
+            return true;
+        } catch (Exception e) {
+            Logger.LogWarning("Unable to rename SMB file. Falling back to copy.", e);
+            return false;
+        }
+    }
+
     private String getServerPath(String path) {
         OpenServer server = null;
         if (getServerIndex() >= 0)
@@ -7,12 +7,17 @@ import java.io.OutputStream;
 import java.util.ArrayList;
 import java.util.Collections;
 import java.util.Date;
+import java.util.HashSet;
 import java.util.List;
 
 import org.brandroid.openmanager.activities.OpenExplorer;
+import org.brandroid.openmanager.adapters.FilenameIndex;
 import org.brandroid.openmanager.adapters.OpenPathDbAdapter;
 import org.brandroid.openmanager.data.OpenNetworkPath.Cancellable;
+import org.brandroid.openmanager.services.FileScannerService;
 import org.brandroid.openmanager.util.FileManager;
+import org.brandroid.openmanager.util.SortKey;
+import org.brandroid.openmanager.util.TreeWalker;
 import org.brandroid.utils.Logger;
 
 import android.database.Cursor;
@@ -24,31 +29,37 @@ public class OpenSearch extends OpenPath {
     private final String mQuery;
     private final OpenPath mBasePath;
     private final List<OpenPath> mResultsArray;
+    private final HashSet<String> mResultPaths = new HashSet<String>();
+    private final FilenameIndex mMatcher;
     private final SearchProgressUpdateListener mListener;
     private Thread mSearchThread = null;
-    private boolean mCancelled = false;
+    private volatile boolean mCancelled = false;
     private boolean mFinished = false;
-    private int mSearchedDirs = 0;
     private long mLastUpdate = 0;
     private int mLastSent = 0;
     private long mStart = 0;
     private final boolean DEBUG = OpenExplorer.IS_DEBUG_BUILD && true;
 
     public OpenSearch(String query, OpenPath base, SearchProgressUpdateListener listener) {
-        mResultsArray = new ArrayList<OpenPath>();
+        mResultsArray = Collections.synchronizedList(new ArrayList<OpenPath>());
         mQuery = query;
+        mMatcher = new FilenameIndex(query);
         mBasePath = base;
         mListener = listener;
     }
 
     public OpenSearch(String query, OpenPath base, SearchProgressUpdateListener listener,
             ArrayList<Parcelable> results) {
-        mResultsArray = new ArrayList<OpenPath>();
+        mResultsArray = Collections.synchronizedList(new ArrayList<OpenPath>());
         mQuery = query;
+        mMatcher = new FilenameIndex(query);
         mBasePath = base;
         mListener = listener;
-        for (Parcelable p : results)
-            mResultsArray.add(FileManager.getOpenCache(p.toString()));
+        for (Parcelable p : results) {
+            OpenPath kid = FileManager.getOpenCache(p.toString());
+            if (kid != null && mResultPaths.add(kid.getPath()))
+                mResultsArray.add(kid);
+        }
     }
     
     public Cancellable list(final OpenContentUpdateListener callback) {
@@ -99,8 +110,9 @@ public class OpenSearch extends OpenPath {
 
         if (DEBUG)
             Logger.LogDebug("OpenSearch started!");
-        SearchDB(mBasePath);
-        SearchWithin(mBasePath);
+        if (!SearchDB(mBasePath))
+            SearchWithin(mBasePath);
+        publishProgress();
         sortResults();
         mFinished = true;
         mListener.onUpdate();
@@ -110,17 +122,37 @@ public class OpenSearch extends OpenPath {
     }
 
     private void sortResults() {
-        Collections.sort(mResultsArray);
+        synchronized (mResultsArray) {
+            SortKey.sort(mResultsArray, OpenPath.Sorting);
+        }
     }
 
-    private void SearchDB(OpenPath dir) {
+    /**
+     * @return true if the results came from the index kept by
+     *         FileScannerService, so walking the folder is unnecessary.
+     */
+    private boolean SearchDB(OpenPath dir) {
+        OpenPathDbAdapter db = getDb();
+        boolean indexed = false;
+        String within = dir != null ? dir.getPath() : null;
+        if (db == null && dir instanceof OpenFile) {
+            String path = FileScannerService.getIndexedPath((OpenFile)dir);
+            if (path != null && mDb != null) {
+                db = mDb;
+                within = path;
+                indexed = true;
+            }
+        }
         try {
             if (DEBUG)
                 Logger.LogVerbose("Searching DB...");
-            if(getDb() == null) return;
-            Cursor c = getDb().fetchSearch(getQuery(), dir != null ? dir.getPath() : null);
+            if (db == null)
+                return false;
+            Cursor c = db.fetchSearch(getQuery(), within);
+            if (c == null)
+                return false;
             c.moveToFirst();
-            while (!c.isAfterLast()) {
+            while (!c.isAfterLast() && !mCancelled) {
                 String folder = c.getString(OpenPathDbAdapter
                         .getKeyIndex(OpenPathDbAdapter.KEY_FOLDER));
                 String name = c
@@ -129,17 +161,37 @@ public class OpenSearch extends OpenPath {
                     folder += "/";
                 OpenPath kid = FileManager.getOpenCache(folder + name);
                 addToResults(kid);
+                publishIfDue();
                 c.moveToNext();
             }
+            c.close();
         } catch (Exception e) {
             Logger.LogError("Unable to search DB.", e);
+            return false;
         }
+        return indexed;
     }
 
+    /**
+     * Add a result unless it has already been found. Safe to call from the
+     * walker's threads.
+     */
     private void addToResults(OpenPath kid) {
-        if (!mResultsArray.contains(kid))
-            mResultsArray.add(kid);
+        if (kid == null)
+            return;
+        synchronized (mResultsArray) {
+            if (mResultPaths.add(kid.getPath()))
+                mResultsArray.add(kid);
+        }
+    }
+
+    /**
+     * Send results found since the last batch, at most twice a second. Only
+     * called on the thread running the search.
+     */
+    private void publishIfDue() {
         if (new Date().getTime() - mLastUpdate > 500) {
+            mLastUpdate = new Date().getTime();
             publishProgress();
             try {
                 // It appears that no matter which thread this is run on,
@@ -154,43 +206,41 @@ public class OpenSearch extends OpenPath {
     private void SearchWithin(OpenPath dir) {
         if (dir == null)
             return;
-        mSearchedDirs++;
-        OpenPath[] kids = null;
         try {
-            kids = dir.listFiles();
-        } catch (IOException e) {
-            return;
-        }
-        for (OpenPath kid : kids) {
-            if (mCancelled)
-                return;
-            if (kid == null || !kid.exists())
-                continue;
-            if (kid.getName() == null)
-                continue;
-            if (isMatch(kid.getName().toLowerCase(), getQuery().toLowerCase()))
-                addToResults(kid);
+            new TreeWalker().walk(dir, new TreeWalker.Visitor() {
+                public boolean onVisit(OpenPath path) {
+                    if (mMatcher.matches(path.getName()))
+                        addToResults(path);
+                    return !mCancelled;
+                }
+
+                public void onTick() {
+                    publishIfDue();
+                }
 
-            if (kid.isDirectory() && !mCancelled)
-                SearchWithin(kid);
+                public boolean isCancelled() {
+                    return mCancelled;
+                }
+            });
+        } catch (InterruptedException e) {
+            Logger.LogWarning("OpenSearch interrupted.", e);
         }
     }
 
     public void publishProgress() {
-        int sz = mResultsArray.size();
-        if (sz > mLastSent) {
-            int cnt = sz - mLastSent;
-            List<OpenPath> toSend = mResultsArray.subList(mLastSent, sz);
-            mLastSent = sz;
-            mListener.onAddResults(toSend);
+        List<OpenPath> toSend = null;
+        synchronized (mResultsArray) {
+            int sz = mResultsArray.size();
+            if (sz > mLastSent) {
+                toSend = new ArrayList<OpenPath>(mResultsArray.subList(mLastSent, sz));
+                mLastSent = sz;
+            }
         }
+        if (toSend != null)
+            mListener.onAddResults(toSend);
         mListener.onUpdate();
     }
 
-    private boolean isMatch(String a, String b) {
-        return a.toLowerCase().indexOf(b.toLowerCase()) > -1 ? true : false;
-    }
-
     @Override
     public boolean showChildPath() {
         return true;
@@ -236,9 +286,11 @@ public class OpenSearch extends OpenPath {
 
     @Override
     public OpenPath getChild(String name) {
-        for (OpenPath kid : mResultsArray)
-            if (kid.getName().equalsIgnoreCase(name))
-                return kid;
+        synchronized (mResultsArray) {
+            for (OpenPath kid : mResultsArray)
+                if (kid.getName().equalsIgnoreCase(name))
+                    return kid;
+        }
         return null;
     }
 
@@ -316,7 +368,11 @@ public class OpenSearch extends OpenPath {
 
     @Override
     public void clearChildren() {
-        mResultsArray.clear();
+        synchronized (mResultsArray) {
+            mResultsArray.clear();
+            mResultPaths.clear();
+            mLastSent = 0;
+        }
         // start();
         mListener.onUpdate();
     }
@@ -25,9 +25,11 @@ import java.util.ArrayList;
 import java.util.Arrays;
 import java.util.Collections;
 import java.util.Date;
+import java.util.HashSet;
 import java.util.Hashtable;
 import java.util.List;
 import java.util.Locale;
+import java.util.Set;
 import java.util.Vector;
 import java.util.concurrent.CopyOnWriteArrayList;
 
@@ -39,6 +41,7 @@ import org.brandroid.openmanager.adapters.ContentAdapter;
 import org.brandroid.openmanager.adapters.OpenClipboard;
 import org.brandroid.openmanager.adapters.OpenPathAdapter;
 import org.brandroid.openmanager.adapters.OpenPathDbAdapter;
+import org.brandroid.openmanager.data.FileListing;
 import org.brandroid.openmanager.data.OpenCursor;
 import org.brandroid.openmanager.data.OpenDrive;
 import org.brandroid.openmanager.data.OpenFile;
@@ -68,8 +71,11 @@ import org.brandroid.openmanager.util.EventHandler.CompressionType;
 import org.brandroid.openmanager.util.EventHandler.EventType;
 import org.brandroid.openmanager.util.EventHandler.OnWorkerUpdateListener;
 import org.brandroid.openmanager.util.FileManager;
+import org.brandroid.openmanager.util.FolderWatcher;
+import org.brandroid.openmanager.util.FolderWatcher.OnFolderChangedListener;
 import org.brandroid.openmanager.util.InputDialog;
 import org.brandroid.openmanager.util.IntentManager;
+import org.brandroid.openmanager.util.ListingPrefetcher;
 import org.brandroid.openmanager.util.NetworkIOTask;
 import org.brandroid.openmanager.util.NetworkIOTask.OnTaskUpdateListener;
 import org.brandroid.openmanager.util.SortType;
@@ -182,6 +188,34 @@ public class ContentFragment extends OpenFragment implements OnItemLongClickList
 
     protected Integer mViewMode = null;
     protected ContentAdapter mContentAdapter;
+    private final ListingPrefetcher mPrefetcher = new ListingPrefetcher();
+    private volatile boolean mWatchStopped = false;
+    private final FolderWatcher mWatcher = new FolderWatcher(new OnFolderChangedListener() {
+        public void onFolderChanged(final OpenFile folder, Set<String> names) {
+            final ContentAdapter adapter = mContentAdapter;
+            if (adapter == null || !folder.equals(mPath))
+                return;
+            final FileListing old = adapter.getListing();
+            if (names == null || old == null || !folder.equals(old.getFolder())) {
+                FileListing listing = FileListing.list(folder);
+                if (listing != null)
+                    showListing(folder, listing, null);
+                return;
+            }
+            // keeps the old order, so only the changed rows move
+            final FileListing listing = old.update(names);
+            final HashSet<String> changed = new HashSet<String>();
+            for (String name : names)
+                changed.add(new File(folder.getFile(), name).getPath());
+            getHandler().post(new Runnable() {
+                public void run() {
+                    if (folder.equals(mPath) && adapter == mContentAdapter
+                            && adapter.getListing() == old)
+                        adapter.updateListing(listing, changed);
+                }
+            });
+        }
+    });
     private OnCreateContextMenuListener mConvListOnCreateContextMenuListener;
 
     /**
@@ -515,6 +549,10 @@ public class ContentFragment extends OpenFragment implements OnItemLongClickList
          * -1) || sPath .startsWith("/system"))) path = new OpenFileRoot(path);
          */
 
+        if (mPath == null || !mPath.equals(path)) {
+            mPrefetcher.cancel();
+            mWatcher.stop();
+        }
         mPath = path;
 
         getContentAdapter();
@@ -585,14 +623,74 @@ public class ContentFragment extends OpenFragment implements OnItemLongClickList
         runUpdateTask(false);
     }
 
+    /**
+     * List a local folder into a {@link FileListing} off the UI thread, so
+     * large folders are held by column instead of as OpenFile objects.
+     */
+    private void listLocal(final OpenFile folder) {
+        setProgressVisibility(true);
+        new Thread(new Runnable() {
+            public void run() {
+                FileListing listing = FileListing.list(folder);
+                if (listing == null)
+                    Logger.LogWarning("Unable to list " + folder);
+                showListing(folder, listing, new Runnable() {
+                    public void run() {
+                        if (!mWatchStopped)
+                            mWatcher.watch(folder);
+                        setProgressVisibility(false);
+                        ViewUtils.setViewsVisible(getView(), false, android.R.id.empty);
+                    }
+                });
+            }
+        }).start();
+    }
+
+    /**
+     * Sort a local listing on the calling thread and show it on the UI
+     * thread, unless the fragment has moved to another folder by then.
+     *
+     * @param then Run on the UI thread after the listing is shown, if it is.
+     */
+    private void showListing(final OpenFile folder, final FileListing listing,
+            final Runnable then) {
+        final ContentAdapter adapter = mContentAdapter;
+        if (adapter != null && listing != null)
+            adapter.sortListing(listing);
+        getHandler().post(new Runnable() {
+            public void run() {
+                if (!folder.equals(mPath))
+                    return;
+                if (adapter != null && listing != null && adapter == mContentAdapter)
+                    adapter.bindListing(listing);
+                if (then != null)
+                    then.run();
+            }
+        });
+    }
+
     public void runUpdateTask(boolean reconnect) {
         if (mPath == null) {
             Logger.LogWarning("ContentFragment.runUpdateTask warning: mPath is null!");
             return;
         }
+        if (mPath.getClass().equals(OpenFile.class) && mPath.canRead()) {
+            listLocal((OpenFile)mPath);
+            return;
+        }
+        OpenPath[] prefetched = ListingPrefetcher.take(mPath);
+        if (prefetched != null) {
+            Logger.LogDebug("Using prefetched listing of " + mPath);
+            setProgressVisibility(false);
+            updateData(prefetched);
+            ViewUtils.setViewsVisible(getView(), false, android.R.id.empty);
+            return;
+        }
         if (mPath instanceof OpenPathUpdateHandler) {
             mContentAdapter.clearData();
             setProgressVisibility(true);
+            final OpenPath folder = mPath;
+            final ArrayList<OpenPath> listed = new ArrayList<OpenPath>();
 
             final OpenContentUpdateListener updateCallback = new OpenContentUpdateListener() {
                 @Override
@@ -600,6 +698,9 @@ public class ContentFragment extends OpenFragment implements OnItemLongClickList
                     if(OpenExplorer.IS_DEBUG_BUILD)
                     	Logger.LogVerbose("ContentFragment.OpenContentUpdateListener.addContentPath");
                     mContentAdapter.addAll(Arrays.asList(files));
+                    synchronized (listed) {
+                        listed.addAll(Arrays.asList(files));
+                    }
                     if(OpenPath.AllowDBCache)
                     {
                         new Thread(new Runnable() {
@@ -621,6 +722,11 @@ public class ContentFragment extends OpenFragment implements OnItemLongClickList
                 public void doneUpdating() {
                     if(OpenExplorer.IS_DEBUG_BUILD)
                     	Logger.LogVerbose("ContentFragment.OpenContentUpdateListener.doneUpdating");
+                    synchronized (listed) {
+                        mPrefetcher.prefetch(folder, listed.toArray(new OpenPath[listed.size()]),
+                                mContentAdapter.getSorting());
+                        listed.clear();
+                    }
                     getHandler().post(new Runnable() {
                         public void run() {
                             setProgressVisibility(false);
@@ -669,6 +775,7 @@ public class ContentFragment extends OpenFragment implements OnItemLongClickList
             return;
         } else if (mPath instanceof OpenPath.ListHandler) {
             setProgressVisibility(true);                
+            final OpenPath folder = mPath;
             ListHandler lh = (ListHandler)mPath;
             lh.list(new OpenPath.ListListener() {
                 public void onException(final Exception e) {
@@ -687,13 +794,14 @@ public class ContentFragment extends OpenFragment implements OnItemLongClickList
                     mContentAdapter.updateData(list);
                     notifyDataSetChanged();
                     ViewUtils.setViewsVisible(getView(), false, android.R.id.empty);
+                    mPrefetcher.prefetch(folder, list, mContentAdapter.getSorting());
                     if(OpenPath.AllowDBCache)
                     {
                         new Thread(new Runnable() {
                             public void run() {
                                 OpenPathDbAdapter db = OpenPath.getDb();
                                 if (db != null)
-                                    db.createItem(list);
+                                    db.replaceFolder(folder, list);
                                 else
                                     for (OpenPath kid : list)
                                         if (kid != null)
@@ -1810,8 +1918,28 @@ public class ContentFragment extends OpenFragment implements OnItemLongClickList
         }
     }
 
+    @Override
+    public void onStart() {
+        super.onStart();
+        if (mWatchStopped) {
+            mWatchStopped = false;
+            // changes made while stopped were missed
+            if (mPath != null && mPath.getClass().equals(OpenFile.class))
+                runUpdateTask();
+        }
+    }
+
+    @Override
+    public void onStop() {
+        mWatchStopped = true;
+        mWatcher.stop();
+        super.onStop();
+    }
+
     @Override
     public void onDestroy() {
+        mPrefetcher.cancel();
+        mWatcher.stop();
         if (mTask != null)
             mTask.cancel(true);
         super.onDestroy();
@@ -2197,6 +2325,7 @@ public class ContentFragment extends OpenFragment implements OnItemLongClickList
         }
         if(OpenExplorer.IS_DEBUG_BUILD)
         	Logger.LogVerbose("ContentFragment.updateData");
+        mPrefetcher.prefetch(mPath, result, mContentAdapter.getSorting());
         if (Thread.currentThread().equals(OpenExplorer.UiThread)) {
             mContentAdapter.updateData(result);
             notifyDataSetChanged();
@@ -1,16 +1,386 @@
-
 package org.brandroid.openmanager.services;
 
+import java.io.File;
+import java.io.IOException;
+import java.util.ArrayList;
+import java.util.Collection;
+import java.util.HashMap;
+import java.util.LinkedHashSet;
+import java.util.Map;
+import java.util.Set;
+import java.util.concurrent.atomic.AtomicInteger;
+
+import org.brandroid.openmanager.adapters.OpenPathDbAdapter;
+import org.brandroid.openmanager.data.OpenFile;
+import org.brandroid.openmanager.data.OpenPath;
+import org.brandroid.openmanager.util.TreeWalker;
+import org.brandroid.utils.Logger;
+import org.brandroid.utils.Preferences;
+
 import android.app.Service;
+import android.content.Context;
 import android.content.Intent;
+import android.content.IntentFilter;
+import android.content.SharedPreferences;
+import android.os.BatteryManager;
+import android.os.FileObserver;
+import android.os.Handler;
+import android.os.HandlerThread;
 import android.os.IBinder;
+import android.os.Process;
 
+/**
+ * Keeps an index of local volumes in files.db. The first run crawls every
+ * volume. After that, changes are picked up from FileObserver events on the
+ * busiest folders, and from a periodic pass that compares each indexed
+ * folder's modified time with the one recorded when it was listed, so only
+ * folders that changed are listed again. Work is deferred while the battery
+ * is low, and crawls run on fewer threads and rescans less often when the
+ * device is not charging.
+ */
 public class FileScannerService extends Service {
+    private static final String PREFS_FILE = "file_index";
+    private static final long RESCAN_CHARGING = 15 * 60 * 1000;
+    private static final long RESCAN_BATTERY = 60 * 60 * 1000;
+    private static final long OBSERVER_DELAY = 2000;
+    /** Battery percentage needed to crawl while not charging. */
+    private static final int MIN_BATTERY_CRAWL = 50;
+    /** Battery percentage needed to rescan while not charging. */
+    private static final int MIN_BATTERY_RESCAN = 30;
+    private static final int MAX_WATCHES = 64;
+    private static final int OBSERVED_EVENTS = FileObserver.CREATE | FileObserver.DELETE
+            | FileObserver.MOVED_FROM | FileObserver.MOVED_TO | FileObserver.CLOSE_WRITE;
+    private static final String[] WATCHED_FOLDERS = {
+            "", "DCIM", "DCIM/Camera", "Download", "Pictures", "Music", "Movies", "Documents"
+    };
+
+    private static volatile boolean mIndexReady = false;
+    /** Paths of the volume roots the last complete crawl walked. */
+    private static volatile String[] mIndexedRoots = new String[0];
+
+    private HandlerThread mThread;
+    private Handler mHandler;
+    private OpenPathDbAdapter mDb;
+    private SharedPreferences mPrefs;
+    private volatile boolean mStopped = false;
+    private final ArrayList<FileObserver> mObservers = new ArrayList<FileObserver>();
+    private final Set<String> mDirty = new LinkedHashSet<String>();
+
+    /**
+     * Returns true once a full crawl has completed, so searches of local
+     * folders can be answered from files.db.
+     */
+    public static boolean isIndexReady() {
+        return mIndexReady;
+    }
+
+    /**
+     * Returns the path a local folder is stored under in files.db, or null
+     * if the index can't answer for it: the service isn't running, no crawl
+     * has completed, or the folder is outside every crawled volume. Aliases
+     * such as /sdcard are resolved to the volume path the crawl used. Does
+     * file system calls, so don't call on the UI thread.
+     */
+    public static String getIndexedPath(OpenFile dir) {
+        if (!mIndexReady)
+            return null;
+        String path;
+        try {
+            path = dir.getFile().getCanonicalPath();
+        } catch (IOException e) {
+            return null;
+        }
+        for (String indexed : mIndexedRoots) {
+            String root;
+            try {
+                root = new File(indexed).getCanonicalPath();
+            } catch (IOException e) {
+                continue;
+            }
+            if (path.equals(root))
+                return indexed;
+            if (path.startsWith(root.endsWith("/") ? root : root + "/")) {
+                String rest = path.substring(root.length());
+                if (!rest.startsWith("/"))
+                    rest = "/" + rest;
+                return (indexed.endsWith("/") ? indexed.substring(0, indexed.length() - 1)
+                        : indexed) + rest;
+            }
+        }
+        return null;
+    }
+
+    /**
+     * Forget that a crawl completed, so the index isn't trusted while the
+     * service is off and is crawled again from scratch when turned back on.
+     */
+    public static void reset(Context context) {
+        mIndexReady = false;
+        mIndexedRoots = new String[0];
+        SharedPreferences prefs = Preferences.getPreferences(context, PREFS_FILE);
+        if (prefs != null)
+            prefs.edit().remove("crawled").remove("roots").commit();
+    }
+
+    public static boolean isEnabled(Context context) {
+        return new Preferences(context).getBoolean("global", "pref_index_files", false);
+    }
 
     @Override
     public IBinder onBind(Intent intent) {
-        // TODO Auto-generated method stub
         return null;
     }
 
+    @Override
+    public void onCreate() {
+        super.onCreate();
+        mThread = new HandlerThread("FileScanner", Process.THREAD_PRIORITY_BACKGROUND);
+        mThread.start();
+        mHandler = new Handler(mThread.getLooper());
+        mDb = OpenPath.getIndexDb(this);
+        mPrefs = Preferences.getPreferences(this, PREFS_FILE);
+        String roots = mPrefs != null ? mPrefs.getString("roots", null) : null;
+        mIndexedRoots = roots != null && roots.length() > 0 ? roots.split("\n") : new String[0];
+        mIndexReady = mPrefs != null && mPrefs.getBoolean("crawled", false)
+                && mIndexedRoots.length > 0;
+    }
+
+    @Override
+    public int onStartCommand(Intent intent, int flags, int startId) {
+        if (!isEnabled(this)) {
+            reset(this);
+            stopSelf();
+            return START_NOT_STICKY;
+        }
+        mHandler.removeCallbacks(mScan);
+        mHandler.post(mScan);
+        return START_STICKY;
+    }
+
+    @Override
+    public void onDestroy() {
+        mStopped = true;
+        // nothing keeps the index current any more
+        mIndexReady = false;
+        unwatch();
+        mHandler.removeCallbacksAndMessages(null);
+        mThread.quit();
+        super.onDestroy();
+    }
+
+    private final Runnable mScan = new Runnable() {
+        public void run() {
+            if (mStopped)
+                return;
+            boolean charging = isCharging();
+            int battery = getBatteryLevel();
+            if (!mIndexReady) {
+                if (charging || battery >= MIN_BATTERY_CRAWL)
+                    crawl(charging);
+            } else if (charging || battery >= MIN_BATTERY_RESCAN)
+                rescan(charging);
+            if (mIndexReady && mObservers.isEmpty())
+                watch();
+            if (!mStopped)
+                mHandler.postDelayed(this, charging ? RESCAN_CHARGING : RESCAN_BATTERY);
+        }
+    };
+
+    private final Runnable mFlush = new Runnable() {
+        public void run() {
+            String[] dirty;
+            synchronized (mDirty) {
+                dirty = mDirty.toArray(new String[mDirty.size()]);
+                mDirty.clear();
+            }
+            for (String path : dirty)
+                if (!mStopped)
+                    relist(new OpenFile(path));
+        }
+    };
+
+    private Intent getBatteryStatus() {
+        return registerReceiver(null, new IntentFilter(Intent.ACTION_BATTERY_CHANGED));
+    }
+
+    private boolean isCharging() {
+        Intent status = getBatteryStatus();
+        return status != null && status.getIntExtra(BatteryManager.EXTRA_PLUGGED, 0) != 0;
+    }
+
+    private int getBatteryLevel() {
+        Intent status = getBatteryStatus();
+        if (status == null)
+            return 100;
+        int level = status.getIntExtra(BatteryManager.EXTRA_LEVEL, -1);
+        int scale = status.getIntExtra(BatteryManager.EXTRA_SCALE, -1);
+        return level < 0 || scale <= 0 ? 100 : level * 100 / scale;
+    }
+
+    /**
+     * Returns the roots of every local volume.
+     */
+    private static Collection<OpenFile> getVolumes() {
+        HashMap<String, OpenFile> ret = new HashMap<String, OpenFile>();
+        for (OpenFile vol : new OpenFile[] {
+                OpenFile.getInternalMemoryDrive(), OpenFile.getExternalMemoryDrive(false),
+                OpenFile.getUsbDrive()
+        })
+            if (vol != null && vol.exists() && vol.isDirectory())
+                ret.put(vol.getPath(), vol);
+        return ret.values();
+    }
+
+    /**
+     * Walks folders, replacing each folder's rows as it is listed. Stops as
+     * soon as the battery drops below min while not charging.
+     */
+    private class Indexer implements TreeWalker.FolderVisitor {
+        private final int mMinBattery;
+        private long mLastCheck = 0;
+        private volatile boolean mCancelled = false;
+        /** Set if any folder could not be written, so the index is incomplete. */
+        volatile boolean mFailed = false;
+        final AtomicInteger mFolders = new AtomicInteger(0);
+
+        Indexer(int minBattery) {
+            mMinBattery = minBattery;
+        }
+
+        public void onFolder(OpenPath dir, OpenPath[] kids) {
+            if (mDb.replaceFolder(dir, kids) < 0)
+                mFailed = true;
+            mFolders.incrementAndGet();
+        }
+
+        public boolean onVisit(OpenPath path) {
+            return !mCancelled;
+        }
+
+        public void onTick() {
+            long now = System.currentTimeMillis();
+            if (now - mLastCheck < 30000)
+                return;
+            mLastCheck = now;
+            if (!isCharging() && getBatteryLevel() < mMinBattery) {
+                Logger.LogInfo("FileScannerService: Pausing for battery.");
+                mCancelled = true;
+            }
+        }
+
+        public boolean isCancelled() {
+            return mCancelled || mStopped;
+        }
+    }
+
+    private boolean walk(OpenFile root, Indexer indexer, boolean charging) {
+        try {
+            new TreeWalker(charging ? TreeWalker.DEFAULT_THREADS : 1).walk(root, indexer);
+        } catch (InterruptedException e) {
+            return false;
+        }
+        return !indexer.isCancelled();
+    }
+
+    private void crawl(boolean charging) {
+        long start = System.currentTimeMillis();
+        Indexer indexer = new Indexer(MIN_BATTERY_CRAWL);
+        StringBuilder roots = new StringBuilder();
+        ArrayList<String> walked = new ArrayList<String>();
+        for (OpenFile vol : getVolumes()) {
+            if (!walk(vol, indexer, charging))
+                return;
+            walked.add(vol.getPath());
+            if (roots.length() > 0)
+                roots.append('\n');
+            roots.append(vol.getPath());
+        }
+        if (indexer.mFailed) {
+            // searches would trust an index with holes, crawl again next time
+            Logger.LogWarning("FileScannerService: Crawl finished with failed writes.");
+            return;
+        }
+        Logger.LogInfo("FileScannerService: Indexed " + indexer.mFolders + " folders in "
+                + (System.currentTimeMillis() - start) + "ms");
+        mIndexedRoots = walked.toArray(new String[walked.size()]);
+        mIndexReady = !walked.isEmpty();
+        if (mPrefs != null)
+            mPrefs.edit().putBoolean("crawled", true).putString("roots", roots.toString())
+                    .commit();
+    }
+
+    /**
+     * List every indexed folder whose modified time has changed, and crawl
+     * any new folders found inside them.
+     */
+    private void rescan(boolean charging) {
+        long start = System.currentTimeMillis();
+        Map<String, Long> folders = mDb.fetchFolders();
+        Indexer indexer = new Indexer(MIN_BATTERY_RESCAN);
+        int changed = 0;
+        for (Map.Entry<String, Long> folder : folders.entrySet()) {
+            if (indexer.isCancelled())
+                return;
+            File dir = new File(folder.getKey());
+            if (!dir.isDirectory()) {
+                mDb.deleteTree(folder.getKey());
+                continue;
+            }
+            if (dir.lastModified() == folder.getValue())
+                continue;
+            changed++;
+            OpenFile[] kids = relist(new OpenFile(dir));
+            if (kids == null)
+                continue;
+            for (OpenFile kid : kids)
+                if (kid.isDirectory() && !folders.containsKey(kid.getPath()))
+                    walk(kid, indexer, charging);
+            indexer.onTick();
+        }
+        Logger.LogInfo("FileScannerService: Checked " + folders.size() + " folders, "
+                + changed + " changed, in " + (System.currentTimeMillis() - start) + "ms");
+    }
+
+    private OpenFile[] relist(OpenFile dir) {
+        OpenFile[] kids = dir.listFiles();
+        if (kids != null)
+            mDb.replaceFolder(dir, kids);
+        else
+            Logger.LogWarning("FileScannerService: Unable to list " + dir);
+        return kids;
+    }
+
+    /**
+     * FileObserver is not recursive and each watch costs a kernel handle, so
+     * only the volume roots and the folders that usually receive new files
+     * are watched. The rescan covers the rest.
+     */
+    private void watch() {
+        for (OpenFile vol : getVolumes()) {
+            for (String sub : WATCHED_FOLDERS) {
+                if (mObservers.size() >= MAX_WATCHES)
+                    return;
+                final File dir = sub.length() > 0 ? new File(vol.getFile(), sub) : vol.getFile();
+                if (!dir.isDirectory())
+                    continue;
+                FileObserver observer = new FileObserver(dir.getPath(), OBSERVED_EVENTS) {
+                    public void onEvent(int event, String path) {
+                        synchronized (mDirty) {
+                            mDirty.add(dir.getPath());
+                        }
+                        mHandler.removeCallbacks(mFlush);
+                        mHandler.postDelayed(mFlush, OBSERVER_DELAY);
+                    }
+                };
+                observer.startWatching();
+                mObservers.add(observer);
+            }
+        }
+    }
+
+    private void unwatch() {
+        for (FileObserver observer : mObservers)
+            observer.stopWatching();
+        mObservers.clear();
+    }
 }
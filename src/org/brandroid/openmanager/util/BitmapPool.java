@@ -0,0 +1,184 @@
+
+package org.brandroid.openmanager.util;
+
+import java.util.Iterator;
+import java.util.LinkedList;
+import java.util.SortedMap;
+import java.util.TreeMap;
+
+import android.annotation.TargetApi;
+import android.graphics.Bitmap;
+import android.graphics.BitmapFactory;
+import android.os.Build;
+
+/**
+ * Bitmaps that are no longer needed, kept so the next decode can write into
+ * one of them with {@link BitmapFactory.Options#inBitmap} instead of
+ * allocating. Bitmaps are bucketed by byte size. Before KitKat a bitmap can
+ * only be reused by a decode of exactly the same size without subsampling;
+ * from KitKat on any bitmap at least as large will do. Before Honeycomb
+ * nothing can be reused, so bitmaps given to the pool are recycled at once,
+ * which still frees their pixels before the next GC.
+ * <p>
+ * Only give the pool bitmaps nothing else refers to. Bitmaps from the
+ * memory cache may still be shown by an ImageView.
+ */
+public class BitmapPool {
+    public static final int MAX_BYTES = 4 * 1024 * 1024;
+    private static final int KITKAT = 19;
+
+    private static final BitmapPool mInstance = new BitmapPool(MAX_BYTES);
+
+    private final int mMaxBytes;
+    private final TreeMap<Integer, LinkedList<Bitmap>> mBuckets =
+            new TreeMap<Integer, LinkedList<Bitmap>>();
+    /** Pooled bitmaps, oldest first. */
+    private final LinkedList<Bitmap> mOrder = new LinkedList<Bitmap>();
+    private int mBytes = 0;
+    private int mHits = 0;
+    private int mMisses = 0;
+    private int mEvictions = 0;
+
+    public BitmapPool(int maxBytes) {
+        mMaxBytes = maxBytes;
+    }
+
+    public static BitmapPool get() {
+        return mInstance;
+    }
+
+    public static boolean canReuse() {
+        return Build.VERSION.SDK_INT >= 11;
+    }
+
+    private static int getBytes(Bitmap bmp) {
+        return bmp.getRowBytes() * bmp.getHeight();
+    }
+
+    private static int getBytesPerPixel(Bitmap.Config config) {
+        if (config == Bitmap.Config.ALPHA_8)
+            return 1;
+        if (config == Bitmap.Config.RGB_565 || config == Bitmap.Config.ARGB_4444)
+            return 2;
+        return 4;
+    }
+
+    /**
+     * Give a bitmap to the pool. It must not be used again by the caller.
+     */
+    public void put(Bitmap bmp) {
+        if (bmp == null || bmp.isRecycled())
+            return;
+        if (!canReuse() || !bmp.isMutable()) {
+            bmp.recycle();
+            return;
+        }
+        int bytes = getBytes(bmp);
+        if (bytes > mMaxBytes / 2) {
+            bmp.recycle();
+            return;
+        }
+        synchronized (this) {
+            LinkedList<Bitmap> bucket = mBuckets.get(bytes);
+            if (bucket == null) {
+                bucket = new LinkedList<Bitmap>();
+                mBuckets.put(bytes, bucket);
+            }
+            bucket.add(bmp);
+            mOrder.add(bmp);
+            mBytes += bytes;
+            while (mBytes > mMaxBytes && !mOrder.isEmpty()) {
+                Bitmap old = mOrder.removeFirst();
+                remove(old);
+                old.recycle();
+                mEvictions++;
+            }
+        }
+    }
+
+    private void remove(Bitmap bmp) {
+        int bytes = getBytes(bmp);
+        LinkedList<Bitmap> bucket = mBuckets.get(bytes);
+        if (bucket != null && bucket.remove(bmp)) {
+            mBytes -= bytes;
+            if (bucket.isEmpty())
+                mBuckets.remove(bytes);
+        }
+    }
+
+    /**
+     * Take a bitmap that a decode to width x height in config can be written
+     * into, or null if there is none.
+     */
+    private synchronized Bitmap take(int width, int height, Bitmap.Config config,
+            boolean exact) {
+        int bytes = width * height * getBytesPerPixel(config);
+        SortedMap<Integer, LinkedList<Bitmap>> buckets = exact ? mBuckets.subMap(bytes,
+                bytes + 1) : mBuckets.subMap(bytes, bytes * 2 + 1);
+        for (LinkedList<Bitmap> bucket : buckets.values()) {
+            Iterator<Bitmap> it = bucket.iterator();
+            while (it.hasNext()) {
+                Bitmap bmp = it.next();
+                if (bmp.getConfig() != config)
+                    continue;
+                if (exact && (bmp.getWidth() != width || bmp.getHeight() != height))
+                    continue;
+                remove(bmp);
+                mOrder.remove(bmp);
+                mHits++;
+                return bmp;
+            }
+        }
+        mMisses++;
+        return null;
+    }
+
+    /**
+     * Decode a file, reusing a pooled bitmap if one fits. opts must hold the
+     * bounds from a decode with inJustDecodeBounds. The result is mutable,
+     * so it can be given back to the pool when no longer needed.
+     */
+    @TargetApi(11)
+    public Bitmap decodeFile(String path, BitmapFactory.Options opts) {
+        if (!canReuse() || opts.outWidth <= 0 || opts.outHeight <= 0)
+            return BitmapFactory.decodeFile(path, opts);
+        opts.inMutable = true;
+        opts.inPurgeable = false;
+        Bitmap.Config config = opts.inPreferredConfig != null ? opts.inPreferredConfig
+                : Bitmap.Config.ARGB_8888;
+        // decoders round the sample size down to a power of two
+        int sample = Integer.highestOneBit(Math.max(1, opts.inSampleSize));
+        boolean exact = Build.VERSION.SDK_INT < KITKAT;
+        Bitmap reuse = null;
+        if (!exact || sample == 1)
+            reuse = take((opts.outWidth + sample - 1) / sample,
+                    (opts.outHeight + sample - 1) / sample, config, exact);
+        opts.inBitmap = reuse;
+        try {
+            return BitmapFactory.decodeFile(path, opts);
+        } catch (IllegalArgumentException e) {
+            // the pooled bitmap didn't fit after all
+            opts.inBitmap = null;
+            put(reuse);
+            return BitmapFactory.decodeFile(path, opts);
+        } finally {
+            opts.inBitmap = null;
+        }
+    }
+
+    public synchronized void clear() {
+        for (Bitmap bmp : mOrder)
+            bmp.recycle();
+        mOrder.clear();
+        mBuckets.clear();
+        mBytes = 0;
+    }
+
+    @Override
+    public synchronized String toString() {
+        int total = mHits + mMisses;
+        return mOrder.size() + " bitmaps (" + (mBytes / 1024) + "KB), " + mHits + " hits, "
+                + mMisses + " misses" + (total > 0 ? " (" + (mHits * 100 / total) + "% hit)" : "")
+                + ", " + mEvictions + " evicted";
+    }
+}
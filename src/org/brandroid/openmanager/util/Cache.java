@@ -168,6 +168,10 @@ public class Cache {
     }
 
     public void start() {
+        synchronized (fQueue) {
+            if (fQueue.isEmpty())
+                return;
+        }
         Thread mThread = new Thread(new NetworkThread());
         mThread.setDaemon(true);
         try {
@@ -185,12 +189,26 @@ public class Cache {
 
     /**
      * Get the image from the remote service. This will call the callback once
-     * the image has been loaded
+     * the image has been loaded. Local files are handed to the
+     * {@link ThumbnailScheduler}.
      * 
      * @param path
      * @param callback
      */
-    public Cache getImage(OpenPath path, int w, int h, Callback callback) {
+    public Cache getImage(final OpenPath path, int w, int h, final Callback callback) {
+        if (!path.requiresThread() && path.exists()) {
+            ThumbnailScheduler.get().request(callback.getApp(), callback, null, path, w, h, 0,
+                    new ThumbnailCreator.OnUpdateImageListener() {
+                        public void updateImage(final Bitmap bmp) {
+                            fHandler.post(new Runnable() {
+                                public void run() {
+                                    callback.onImageLoaded(path, bmp);
+                                }
+                            });
+                        }
+                    });
+            return this;
+        }
         synchronized (fQueue) {
             fQueue.addFirst(new QueueItem(path, w, h, callback));
             fQueue.notify();
@@ -205,6 +223,7 @@ public class Cache {
      * @param callback
      */
     public void removeCallback(Callback callback) {
+        ThumbnailScheduler.get().cancel(callback);
         synchronized (fQueue) {
             Iterator<QueueItem> iter = fQueue.iterator();
             while (iter.hasNext()) {
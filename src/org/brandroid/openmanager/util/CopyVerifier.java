@@ -0,0 +1,160 @@
+
+package org.brandroid.openmanager.util;
+
+import java.io.FileInputStream;
+import java.io.IOException;
+import java.io.InputStream;
+import java.security.MessageDigest;
+import java.security.NoSuchAlgorithmException;
+import java.util.concurrent.Callable;
+import java.util.concurrent.ExecutionException;
+import java.util.concurrent.FutureTask;
+
+import org.brandroid.openmanager.data.OpenFile;
+import org.brandroid.openmanager.data.OpenNetworkPath;
+import org.brandroid.openmanager.data.OpenPath;
+import org.brandroid.openmanager.data.OpenPath.OpenStream;
+import org.brandroid.utils.Logger;
+import org.brandroid.utils.Preferences;
+
+import android.content.Context;
+
+/**
+ * Checks that a finished copy matches its source. The source hash comes from
+ * the bytes that streamed through the copy (see
+ * {@link PipedCopier#copy(InputStream, java.io.OutputStream, long, PipedCopier.CopyListener, MessageDigest)})
+ * and, for servers that support it, from a hash computed remotely. The
+ * destination is read back and hashed while the remote hash is fetched.
+ * Copies with neither (segmented or resumed downloads from servers without
+ * remote hashes) are checked against a fresh read of the source.
+ */
+public class CopyVerifier {
+    public static final String ALGORITHM = "SHA-1";
+
+    public static boolean isEnabled(Context context) {
+        return new Preferences(context).getBoolean("global", "pref_transfer_verify", false);
+    }
+
+    /**
+     * Returns a new digest, or null if the platform lacks the algorithm (in
+     * which case copies go unverified).
+     */
+    public static MessageDigest newDigest() {
+        try {
+            return MessageDigest.getInstance(ALGORITHM);
+        } catch (NoSuchAlgorithmException e) {
+            Logger.LogWarning("CopyVerifier: " + ALGORITHM + " unavailable.", e);
+            return null;
+        }
+    }
+
+    public static String toHex(byte[] hash) {
+        StringBuilder sb = new StringBuilder(hash.length * 2);
+        for (byte b : hash)
+            sb.append(Character.forDigit((b >> 4) & 0xF, 16)).append(
+                    Character.forDigit(b & 0xF, 16));
+        return sb.toString();
+    }
+
+    public static String hash(OpenFile file) throws IOException {
+        return hash(new FileInputStream(file.getFile()));
+    }
+
+    /**
+     * Hash a stream to its end, closing it.
+     */
+    public static String hash(InputStream in) throws IOException {
+        MessageDigest digest = newDigest();
+        if (digest == null) {
+            in.close();
+            return null;
+        }
+        byte[] buffer = new byte[FileManager.BUFFER];
+        try {
+            int read;
+            while ((read = in.read(buffer)) != -1)
+                digest.update(buffer, 0, read);
+        } finally {
+            in.close();
+        }
+        return toHex(digest.digest());
+    }
+
+    /**
+     * @param source Path that was copied.
+     * @param dest Local copy to read back.
+     * @param streamed Digest of the bytes written, or null if the copy did not
+     *            pass through a single stream.
+     * @return false if any source hash differs from the destination, or if
+     *         no source hash could be had at all.
+     */
+    public static boolean verify(final OpenPath source, OpenFile dest, MessageDigest streamed) {
+        FutureTask<String> remote = null;
+        if (source instanceof OpenNetworkPath.RemoteChecksum) {
+            remote = new FutureTask<String>(new Callable<String>() {
+                public String call() throws Exception {
+                    return ((OpenNetworkPath.RemoteChecksum)source).getRemoteSha1();
+                }
+            });
+            new Thread(remote, "CopyVerifier").start();
+        }
+        String expected = streamed != null ? toHex(streamed.digest()) : null;
+        String actual;
+        try {
+            actual = hash(dest);
+        } catch (IOException e) {
+            Logger.LogError("CopyVerifier: Unable to read back " + dest, e);
+            return false;
+        }
+        if (actual == null)
+            return true;
+        boolean compared = expected != null;
+        if (expected != null && !expected.equals(actual)) {
+            Logger.LogError("CopyVerifier: " + dest + " does not match the data written ("
+                    + actual + " != " + expected + ")");
+            return false;
+        }
+        if (remote != null) {
+            try {
+                String sum = remote.get();
+                if (sum != null && !sum.equals(actual)) {
+                    Logger.LogError("CopyVerifier: " + dest + " does not match " + source + " ("
+                            + actual + " != " + sum + ")");
+                    return false;
+                }
+                if (sum != null)
+                    compared = true;
+            } catch (InterruptedException e) {
+                Logger.LogWarning("CopyVerifier: Interrupted waiting for remote hash.", e);
+            } catch (ExecutionException e) {
+                Logger.LogWarning("CopyVerifier: Remote hash failed for " + source, e);
+            }
+        }
+        if (!compared) {
+            String sum = null;
+            try {
+                // OpenNetworkPath.getInputStream would download to a temp file
+                // again, so only read sources that can stream directly
+                if (source instanceof OpenNetworkPath.ResumableDownload)
+                    sum = hash(((OpenNetworkPath.ResumableDownload)source).getInputStream(0));
+                else if (source instanceof OpenFile)
+                    sum = hash((OpenFile)source);
+                else if (source instanceof OpenStream && !(source instanceof OpenNetworkPath))
+                    sum = hash(((OpenStream)source).getInputStream());
+            } catch (IOException e) {
+                Logger.LogWarning("CopyVerifier: Unable to read " + source + " again", e);
+            }
+            if (sum == null) {
+                Logger.LogError("CopyVerifier: Nothing to verify " + dest + " against.");
+                return false;
+            }
+            if (!sum.equals(actual)) {
+                Logger.LogError("CopyVerifier: " + dest + " does not match " + source + " ("
+                        + actual + " != " + sum + ")");
+                return false;
+            }
+        }
+        Logger.LogVerbose("CopyVerifier: " + dest + " verified (" + actual + ")");
+        return true;
+    }
+}
@@ -154,4 +154,22 @@ public class DFInfo {
         return mDefault;
     }
 
+    /**
+     * Find the mount point that contains a path, using the longest matching
+     * entry from {@link #LoadDF()}.
+     * 
+     * @param path Absolute local path.
+     * @return Mount point, or null if the path isn't on a known volume.
+     */
+    public static String getMountPoint(String path) {
+        String ret = null;
+        for (String mount : LoadDF().keySet()) {
+            String prefix = mount.endsWith("/") ? mount : mount + "/";
+            if ((path.equals(mount) || path.startsWith(prefix))
+                    && (ret == null || mount.length() > ret.length()))
+                ret = mount;
+        }
+        return ret;
+    }
+
 }
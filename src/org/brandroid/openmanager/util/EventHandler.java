@@ -51,6 +51,7 @@ import java.util.Collection;
 import java.util.Date;
 import java.util.List;
 import java.util.Locale;
+import java.util.Map;
 import java.util.concurrent.Executor;
 import java.util.zip.GZIPInputStream;
 import java.util.zip.ZipEntry;
@@ -63,6 +64,8 @@ import java.io.FileOutputStream;
 import java.io.IOException;
 import java.io.InputStream;
 import java.io.OutputStream;
+import java.nio.channels.FileChannel;
+import java.security.MessageDigest;
 
 import net.contrapunctus.lzma.LzmaInputStream;
 
@@ -85,6 +88,8 @@ import org.brandroid.openmanager.data.OpenRAR.OpenRAREntry;
 import org.brandroid.openmanager.data.OpenTar.OpenTarEntry;
 import org.brandroid.openmanager.data.OpenSMB;
 import org.brandroid.openmanager.data.OpenSmartFolder;
+
+import org.brandroid.openmanager.data.OpenPath.OpenPathMovable;
 import org.brandroid.openmanager.data.OpenPath.OpenPathCopyable;
 import org.brandroid.openmanager.data.OpenZip;
 import org.brandroid.openmanager.fragments.DialogHandler;
@@ -390,81 +395,123 @@ public class EventHandler {
 
     public void copyFile(final Collection<OpenPath> files, final OpenPath newPath,
             final Context mContext, final boolean copyOnly) {
-        // for (OpenPath file : files)
-        // copyFile(file, newPath.getChild(file.getName()), mContext);
-        final EventType type = copyOnly ? COPY_TYPE : CUT_TYPE;
-        for (final OpenPath file : files.toArray(new OpenPath[files.size()]))
-        {
-            if (checkDestinationExists(file, newPath, mContext, type))
-                files.remove(file);
-            else
-                execute(new BackgroundWork(type,
-                        mContext, newPath), file);
-        }
+        transferFiles(files, newPath, mContext, copyOnly ? COPY_TYPE : CUT_TYPE);
     }
 
-    private boolean checkDestinationExists(final OpenPath file, final OpenPath newPath,
-            final Context mContext, final EventType type)
-    {
-        final OpenPath newFile = newPath.getChild(file.getName());
-        if (newFile != null && newFile.exists())
-        {
-            DialogHandler.showMultiButtonDialog(mContext,
-                    getResourceString(mContext, R.string.s_alert_destination_exists),
-                    getResourceString(mContext, R.string.s_title_copying)
-                            + " " + file.getName(),
-                    new OnClickListener() {
-                        public void onClick(DialogInterface dialog, int which) {
-                            switch (which)
-                            {
-                                case R.string.s_menu_rename:
-                                    OpenPath destFile = newFile;
-                                    int i = 1;
-                                    while (destFile.exists())
-                                        destFile = newPath.getChild(
-                                                file.getName() + " (" + i++ + ")");
-                                    showRenameOnCopyDialog(file, destFile, mContext);
-                                    break;
-                                case R.string.s_overwrite:
-                                    execute(new BackgroundWork(type, mContext, newPath,
-                                            file.getName()), file);
-                                    break;
-                            }
-                            try {
-                                dialog.dismiss();
-                            } catch (Exception e) {
-                                Logger.LogWarning(
-                                        "Unable to cancel copyFile dialog.", e);
-                            }
-                        }
-                    },
-                    R.string.s_overwrite, R.string.s_skip, R.string.s_menu_rename);
-            return true;
+    /**
+     * Lists the destination once in the background, resolves every name
+     * conflict with a single prompt, then runs the batch as one job.
+     */
+    private void transferFiles(final Collection<OpenPath> files, final OpenPath newPath,
+            final Context mContext, final EventType type) {
+        AsyncTask<Void, Void, TransferPlan> scan = new AsyncTask<Void, Void, TransferPlan>() {
+            @Override
+            protected TransferPlan doInBackground(Void... params) {
+                return new TransferPlan(files, newPath).scan();
+            }
+
+            @Override
+            protected void onPostExecute(TransferPlan plan) {
+                resolveConflicts(plan, mContext, type);
+            }
+        };
+        // don't queue the scan behind a copy that is already running
+        if (OpenExplorer.BEFORE_HONEYCOMB)
+            scan.execute();
+        else
+            scan.executeOnExecutor(AsyncTask.THREAD_POOL_EXECUTOR);
+    }
+
+    private void resolveConflicts(final TransferPlan plan, final Context mContext,
+            final EventType type) {
+        final List<OpenPath> conflicts = plan.getConflicts();
+        if (conflicts.isEmpty()) {
+            runPlan(plan, mContext, type);
+            return;
         }
-        return false;
+        String message;
+        if (conflicts.size() == 1)
+            message = getResourceString(mContext, R.string.s_alert_destination_exists);
+        else {
+            message = mContext.getString(R.string.s_alert_destinations_exist, conflicts.size());
+            message += "\n";
+            for (int i = 0; i < conflicts.size() && i < 5; i++)
+                message += "\n" + conflicts.get(i).getName();
+            if (conflicts.size() > 5)
+                message += "\n\u2026";
+        }
+        String title = getResourceString(mContext, R.string.s_title_copying) + " "
+                + (conflicts.size() == 1 ? conflicts.get(0).getName() : plan.getIntoDir().getName());
+        AlertDialog prompt = DialogHandler.showMultiButtonDialog(mContext, message, title,
+                new OnClickListener() {
+                    public void onClick(DialogInterface dialog, int which) {
+                        try {
+                            dialog.dismiss();
+                        } catch (Exception e) {
+                            Logger.LogWarning("Unable to cancel copyFile dialog.", e);
+                        }
+                        switch (which) {
+                            case R.string.s_menu_rename:
+                                if (conflicts.size() == 1) {
+                                    showRenameOnCopyDialog(plan, conflicts.get(0), mContext,
+                                            type);
+                                    return;
+                                }
+                                plan.renameConflicts();
+                                break;
+                            case R.string.s_skip:
+                                plan.skipConflicts();
+                                break;
+                        }
+                        runPlan(plan, mContext, type);
+                    }
+                }, R.string.s_overwrite, R.string.s_skip, R.string.s_menu_rename);
+        // backing out of the prompt skips the conflicts, the rest is still copied
+        prompt.setOnCancelListener(new DialogInterface.OnCancelListener() {
+            public void onCancel(DialogInterface dialog) {
+                plan.skipConflicts();
+                runPlan(plan, mContext, type);
+            }
+        });
     }
 
-    private void showRenameOnCopyDialog(final OpenPath sourceFile, final OpenPath destFile,
-            final Context mContext)
+    private void runPlan(TransferPlan plan, Context mContext, EventType type) {
+        OpenPath[] sources = plan.getSources();
+        if (sources.length == 0)
+            return;
+        BackgroundWork work = new BackgroundWork(type, mContext, plan.getIntoDir());
+        work.setTargetNames(plan.getTargetNames());
+        execute(work, sources);
+    }
+
+    private void showRenameOnCopyDialog(final TransferPlan plan, final OpenPath sourceFile,
+            final Context mContext, final EventType type)
     {
+        plan.renameConflicts();
         final InputDialog dlg = new InputDialog(mContext)
                 .setTitle(R.string.s_menu_rename)
-                .setDefaultText(destFile.getName());
+                .setDefaultText(plan.getTargetNames().get(sourceFile.getPath()));
         dlg.setPositiveButton(android.R.string.ok, new OnClickListener() {
             public void onClick(DialogInterface dialog, int which) {
-                OpenPath newDest = destFile.getParent().getChild(dlg.getInputText());
-                newDest.touch();
-                execute(new BackgroundWork(COPY_TYPE, mContext, newDest, newDest.getPath()),
-                        sourceFile);
-
+                plan.setTargetName(sourceFile, dlg.getInputText());
+                runPlan(plan, mContext, type);
                 dialog.dismiss();
             }
         }).setNegativeButton(android.R.string.no, new OnClickListener() {
             public void onClick(DialogInterface dialog, int which) {
+                plan.remove(sourceFile);
+                runPlan(plan, mContext, type);
                 dialog.dismiss();
             }
         });
-        dlg.create().show();
+        AlertDialog prompt = dlg.create();
+        prompt.setOnCancelListener(new DialogInterface.OnCancelListener() {
+            public void onCancel(DialogInterface dialog) {
+                plan.remove(sourceFile);
+                runPlan(plan, mContext, type);
+            }
+        });
+        prompt.show();
     }
 
     public static AsyncTask execute(AsyncTask job) {
@@ -516,9 +563,7 @@ public class EventHandler {
     }
 
     public void cutFile(Collection<OpenPath> files, OpenPath newPath, Context mContext) {
-        for (OpenPath file : files)
-            if (!checkDestinationExists(file, newPath, mContext, CUT_TYPE))
-                execute(new BackgroundWork(CUT_TYPE, mContext, newPath), file);
+        transferFiles(files, newPath, mContext, CUT_TYPE);
     }
 
     public void searchFile(OpenPath dir, String query, Context mContext) {
@@ -581,7 +626,8 @@ public class EventHandler {
         private ProgressDialog mPDialog;
         private Notification mNote = null;
         private ArrayList<String> mSearchResults = null;
-        private boolean isDownload = false;
+        // written by the scheduler's workers, read by publishProgress
+        private volatile boolean isDownload = false;
         private boolean isCancellable = true;
         private int taskId = -1;
         private final Date mStart;
@@ -589,13 +635,20 @@ public class EventHandler {
         private long mElapsed = 0l;
         private long mRemain = 0l;
         private int mTotalCount = 0;
-        private int mCurrentIndex = 0;
-        private OpenPath mCurrentPath;
+        private volatile int mCurrentIndex = 0;
+        private volatile OpenPath mCurrentPath;
         private boolean notifReady = false;
-        private final int[] mLastProgress = new int[3];
+        private final long[] mLastProgress = new long[3];
         private int notifIcon;
         private CompressionType mCompressType = CompressionType.ZIP;
         private Cancellable mCloudCancellor;
+        private final TransferMetrics mMetrics = new TransferMetrics();
+        private TransferScheduler mScheduler = null;
+        private TransferManifest mManifest = null;
+        private boolean mVerify = false;
+        private Map<String, String> mTargetNames = null;
+        private static final int RESUME_ATTEMPTS = 4;
+        private static final long RESUME_CHECKPOINT = 4 * 1024 * 1024;
 
         private OnWorkerUpdateListener mListener;
 
@@ -605,6 +658,20 @@ public class EventHandler {
         
         public OnWorkerUpdateListener getWorkerUpdateListener() { return mListener; }
 
+        /**
+         * @param names Source paths mapped to the name each should be given
+         *            in the destination, as resolved by a {@link TransferPlan}.
+         */
+        public void setTargetNames(Map<String, String> names) {
+            mTargetNames = names;
+        }
+
+        private String getTargetName(OpenPath source) {
+            if (mTargetNames != null && mTargetNames.containsKey(source.getPath()))
+                return mTargetNames.get(source.getPath());
+            return source.getName();
+        }
+
         public void OnWorkerThreadComplete(EventType type, String... results) {
             if (mListener != null)
                 mListener.onWorkerThreadComplete(type, results);
@@ -736,6 +803,8 @@ public class EventHandler {
         protected void onCancelled() {
             if (mCloudCancellor != null)
                 mCloudCancellor.cancel();
+            mMetrics.finish();
+            Logger.LogInfo("EventHandler." + mType + " cancelled : " + mMetrics);
             mNotifier.cancel(BACKGROUND_NOTIFICATION_ID);
             super.onCancelled();
             mTasks.remove(this);
@@ -892,20 +961,27 @@ public class EventHandler {
             return PendingIntent.getActivity(mContext, reqIntent, intent, 0);
         }
 
-        public void searchDirectory(OpenPath dir, String pattern, ArrayList<String> aList) {
+        public void searchDirectory(OpenPath dir, final String pattern,
+                final ArrayList<String> aList) {
             try {
-                for (OpenPath p : dir.listFiles())
-                    if (p.getName().matches(pattern))
-                        aList.add(p.getPath());
-            } catch (IOException e) {
-                e.printStackTrace();
-            }
-            try {
-                for (OpenPath p : dir.list())
-                    if (p.isDirectory())
-                        searchDirectory(p, pattern, aList);
-            } catch (IOException e) {
-                e.printStackTrace();
+                new TreeWalker().walk(dir, new TreeWalker.Visitor() {
+                    public boolean onVisit(OpenPath path) {
+                        if (path.getName().matches(pattern))
+                            synchronized (aList) {
+                                aList.add(path.getPath());
+                            }
+                        return true;
+                    }
+
+                    public void onTick() {
+                    }
+
+                    public boolean isCancelled() {
+                        return BackgroundWork.this.isCancelled();
+                    }
+                });
+            } catch (InterruptedException e) {
+                Logger.LogWarning("Search of " + dir + " interrupted.", e);
             }
         }
 
@@ -913,6 +989,21 @@ public class EventHandler {
             //Logger.LogDebug("Starting Op!");
             mTotalCount = params.length;
             int ret = 0;
+            // what has to be copied, rather than renamed in place
+            OpenPath[] copies = params;
+            if (mType == EventType.COPY || mType == EventType.CUT) {
+                mVerify = CopyVerifier.isEnabled(mContext);
+                publishProgress();
+                if (mType == EventType.CUT) {
+                    copies = moveByRename(params);
+                    ret = params.length - copies.length;
+                }
+                try {
+                    mManifest = TransferManifest.build(copies);
+                } catch (InterruptedException e) {
+                    return ret;
+                }
+            }
 
             mCurrentPath = params[0];
 
@@ -947,6 +1038,10 @@ public class EventHandler {
                         ret += p.touch() ? 1 : 0;
                     break;
                 case COPY:
+                    if (params.length > 1 && runScheduled(params)) {
+                        ret = mScheduler.run(params, mIntoPath, new ScheduledTransfer(false));
+                        break;
+                    }
                     for (int i = 0; i < params.length; i++) {
                         mCurrentIndex = i;
                         mCurrentPath = params[i];
@@ -956,7 +1051,7 @@ public class EventHandler {
                             isDownload = true;
                         publishProgress();
                         try {
-                            if (copyToDirectory(mCurrentPath, mIntoPath, 0))
+                            if (copyToDirectory(mCurrentPath, mIntoPath))
                                 ret++;
                         } catch (IOException e) {
                             Logger.LogError("Couldn't copy file (" + mCurrentPath.getName()
@@ -965,14 +1060,19 @@ public class EventHandler {
                     }
                     break;
                 case CUT:
-                    for (int i = 0; i < params.length; i++) {
-                        mCurrentIndex = i;
-                        mCurrentPath = params[i];
+                    if (copies.length > 1 && runScheduled(copies)) {
+                        ret += mScheduler.run(copies, mIntoPath, new ScheduledTransfer(true));
+                        break;
+                    }
+                    for (int i = 0; i < copies.length; i++) {
+                        mCurrentIndex = params.length - copies.length + i;
+                        mCurrentPath = copies[i];
                         if (mCurrentPath.requiresThread())
                             isDownload = true;
                         publishProgress();
                         try {
-                            if (copyToDirectory(mCurrentPath, mIntoPath, 0)) {
+                            // a cancelled copy may be partial, keep the source
+                            if (copyToDirectory(mCurrentPath, mIntoPath) && !isCancelled()) {
                                 ret++;
                                 mFileMang.deleteTarget(mCurrentPath);
                             }
@@ -1007,9 +1107,25 @@ public class EventHandler {
 
             }
 
+            invalidateCache(params);
             return ret;
         }
 
+        /**
+         * Drop everything this operation may have changed from the path
+         * cache, so the next visit lists it again.
+         */
+        private void invalidateCache(OpenPath[] params) {
+            if (mType == EventType.SEARCH || mType == EventType.ERROR)
+                return;
+            // the destination, or the path that was renamed
+            FileManager.invalidateOpenCache(mIntoPath);
+            if (mType == EventType.COPY)
+                return;
+            for (OpenPath p : params)
+                FileManager.invalidateOpenCache(p);
+        }
+
         protected int compressFiles(OpenPath mArchive, OpenPath... files)
         {
             switch (mCompressType)
@@ -1065,17 +1181,36 @@ public class EventHandler {
             }
         }
 
+        /**
+         * Copiers only borrow buffers while copying, so one is made per copy.
+         */
+        private PipedCopier newCopier() {
+            PipedCopier ret = new PipedCopier();
+            ret.setMetrics(mMetrics);
+            return ret;
+        }
+
         private void copyStreams(InputStream in, OutputStream out, boolean doCloseInput,
                 boolean doCloseOutput) throws IOException {
-            byte[] buffer = new byte[2048];
-            int count = 0;
-            int pos = 0;
-            while ((count = in.read(buffer)) != -1)
-            {
-                out.write(buffer, 0, count);
-                pos += count;
-                onProgressUpdateCallback(pos, mTotalCount);
+            final long base = mMetrics.getBytes();
+            try {
+                newCopier().copy(in, out, -1, new PipedCopier.CopyListener() {
+                    public void onCopyProgress(long bytes) {
+                        mMetrics.update(base + bytes);
+                        onProgressUpdateCallback((int)bytes, mTotalCount);
+                    }
+
+                    public boolean isCancelled() {
+                        return BackgroundWork.this.isCancelled();
+                    }
+                });
+            } finally {
+                closeStreams(in, out, doCloseInput, doCloseOutput);
             }
+        }
+
+        private void closeStreams(InputStream in, OutputStream out, boolean doCloseInput,
+                boolean doCloseOutput) {
             if (doCloseInput)
                 try {
                     if (in != null)
@@ -1192,39 +1327,42 @@ public class EventHandler {
         }
 
         /*
-         * More efficient Channel based copying
+         * More efficient Channel based copying. Data is moved in chunks by the
+         * kernel, with progress and cancellation checked between chunks.
          */
-        private Boolean copyFileToDirectory(final OpenFile source, OpenFile into, final int total) {
+        private Boolean copyFileToDirectory(final OpenFile source, OpenFile into) {
             Logger.LogVerbose("Using Channel copy for " + source);
             into.mkdir();
             if (into.isDirectory())
-                into = into.getChild(source.getName());
+                into = into.getChild(getTargetName(source));
             if (source.getPath().equals(into.getPath()))
                 return false;
             final OpenFile dest = (OpenFile)into;
             final long size = source.length();
-            Thread t = new Thread(new Runnable() {
-                    @Override
-                    public void run() {
-                        while ((int)dest.length() < total && !Thread.currentThread().isInterrupted()) {
-                            long pos = dest.length();
-                            publish((int)pos, (int)size, total);
-                            try {
-                                Thread.sleep(500);
-                                if(Thread.currentThread().isInterrupted())
-                                	break;
-                            } catch (InterruptedException e) {
-                                break;
-                            }
-                        }
-                    }
-                });
-            t.start();
-            publish(0, (int)size, total);
-            boolean ret = dest.copyFrom(source);
-            if(t != null && !t.isInterrupted())
-            	t.interrupt();
-            return ret;
+            publishBytes(0, size);
+            MessageDigest digest = mVerify ? CopyVerifier.newDigest() : null;
+            if (!dest.copyFrom(source, new PipedCopier.CopyListener() {
+                public void onCopyProgress(long bytes) {
+                    publishBytes(bytes, size);
+                }
+
+                public boolean isCancelled() {
+                    return BackgroundWork.this.isCancelled();
+                }
+            }, digest))
+                return false;
+            return digest == null || checkVerified(source, dest, digest);
+        }
+
+        /**
+         * Verify a finished copy, removing the destination if it doesn't
+         * match so the source is never deleted on a bad move.
+         */
+        private boolean checkVerified(OpenPath source, OpenFile dest, MessageDigest streamed) {
+            if (CopyVerifier.verify(source, dest, streamed))
+                return true;
+            dest.delete();
+            return false;
         }
 
         private Boolean checkCloudUpload(final OpenPath old, final OpenPath intoDir)
@@ -1281,7 +1419,7 @@ public class EventHandler {
             if (into instanceof OpenFile && from instanceof OpenNetworkPath.CloudOpsHandler)
             {
                 if(into.isDirectory())
-                    into = into.getChild(from.getName());
+                    into = into.getChild(getTargetName(from));
                 final CloudOpsHandler remote = ((OpenNetworkPath.CloudOpsHandler)from);
                 final OpenFile local = (OpenFile)into;
                 final long srcLength = from.length();
@@ -1309,17 +1447,271 @@ public class EventHandler {
             return false;
         }
 
-        private Boolean copyToDirectory(OpenPath old, OpenPath intoDir, int total)
-                throws IOException {
+        /**
+         * Download a network file, checkpointing synced offsets in the
+         * {@link TransferJournal}. Dropped connections are retried from the
+         * last checkpoint, and a later attempt at the same copy (even after a
+         * restart) continues from there.
+         */
+        private boolean copyResumable(final OpenNetworkPath source, final OpenFile dest) {
+            final TransferJournal journal = TransferJournal.getInstance(mContext);
+            final long size = source.length();
+            // only a download that runs start to finish in one stream has a usable digest
+            final MessageDigest digest = mVerify ? CopyVerifier.newDigest() : null;
+            long offset = journal.getOffset(source, dest);
+            if (offset > 0)
+                Logger.LogInfo("Resuming " + source + " at " + offset + " bytes");
+            else if (SegmentedDownloader.isWorthwhile(size)) {
+                if (copySegmented(source, dest, size, journal))
+                    return !mVerify || checkVerified(source, dest, null);
+                offset = journal.getOffset(source, dest);
+            }
+            for (int attempt = 0; attempt < RESUME_ATTEMPTS && !isCancelled(); attempt++) {
+                if (attempt > 0) {
+                    try {
+                        Thread.sleep(1000L << attempt);
+                    } catch (InterruptedException e) {
+                        return false;
+                    }
+                    Logger.LogInfo("Retrying " + source + " from " + offset + " bytes");
+                }
+                final long start = offset;
+                final long[] synced = new long[] {
+                    offset
+                };
+                InputStream in = null;
+                FileOutputStream out = null;
+                try {
+                    out = new FileOutputStream(dest.getFile(), true);
+                    out.getChannel().truncate(start);
+                    in = ((OpenNetworkPath.ResumableDownload)source).getInputStream(start);
+                    final FileOutputStream fout = out;
+                    if (digest != null)
+                        digest.reset();
+                    long written = newCopier().copy(in, out, size > 0 ? size - start : -1,
+                            new PipedCopier.CopyListener() {
+                                public void onCopyProgress(long bytes) {
+                                    long pos = start + bytes;
+                                    if (pos - synced[0] >= RESUME_CHECKPOINT) {
+                                        try {
+                                            fout.getFD().sync();
+                                            journal.checkpoint(source, dest, pos);
+                                            synced[0] = pos;
+                                        } catch (IOException e) {
+                                            Logger.LogWarning("Unable to sync " + dest, e);
+                                        }
+                                    }
+                                    publishBytes(pos, Math.max(pos, size));
+                                }
+
+                                public boolean isCancelled() {
+                                    return BackgroundWork.this.isCancelled();
+                                }
+                            }, start == 0 ? digest : null);
+                    out.getFD().sync();
+                    offset = start + written;
+                    if (size <= 0 || offset >= size) {
+                        journal.remove(source, dest);
+                        if (!mVerify)
+                            return true;
+                        closeStreams(in, out, true, true);
+                        in = null;
+                        out = null;
+                        return checkVerified(source, dest, start == 0 ? digest : null);
+                    }
+                    // the server closed the stream early (cancelling throws instead)
+                    journal.checkpoint(source, dest, offset);
+                } catch (IOException e) {
+                    Logger.LogWarning("Download of " + source + " interrupted at " + synced[0]
+                            + " bytes", e);
+                    offset = synced[0];
+                } finally {
+                    closeStreams(in, out, in != null, out != null);
+                }
+            }
+            return false;
+        }
+
+        /**
+         * Download a large file over several connections. The contiguous
+         * prefix that made it to disk is synced and journaled as it grows and
+         * on failure, so {@link #copyResumable} can carry on from there with
+         * one stream, even after a restart.
+         */
+        private boolean copySegmented(final OpenNetworkPath source, final OpenFile dest,
+                final long size, final TransferJournal journal) {
+            FileChannel channel = null;
+            SegmentedDownloader loader = null;
+            try {
+                channel = dest.getRandomAccessChannel();
+                channel.truncate(size);
+                loader = new SegmentedDownloader((OpenNetworkPath.ResumableDownload)source, size,
+                        channel);
+                Logger.LogDebug("Downloading " + source + " in "
+                        + SegmentedDownloader.getSegmentCount(size) + " segments");
+                final FileChannel fchannel = channel;
+                final SegmentedDownloader floader = loader;
+                final long[] synced = new long[] {
+                    0
+                };
+                loader.download(new PipedCopier.CopyListener() {
+                    public void onCopyProgress(long bytes) {
+                        long contiguous = floader.getContiguous();
+                        if (contiguous - synced[0] >= RESUME_CHECKPOINT) {
+                            try {
+                                fchannel.force(false);
+                                journal.checkpoint(source, dest, contiguous);
+                                synced[0] = contiguous;
+                            } catch (IOException e) {
+                                Logger.LogWarning("Unable to sync " + dest, e);
+                            }
+                        }
+                        publishBytes(bytes, size);
+                    }
+
+                    public boolean isCancelled() {
+                        return BackgroundWork.this.isCancelled();
+                    }
+                });
+                channel.force(false);
+                journal.remove(source, dest);
+                return true;
+            } catch (IOException e) {
+                Logger.LogWarning("Segmented download of " + source + " failed", e);
+                if (loader != null)
+                    try {
+                        channel.force(false);
+                        if (loader.getContiguous() > 0)
+                            journal.checkpoint(source, dest, loader.getContiguous());
+                    } catch (IOException e2) {
+                    }
+                return false;
+            } finally {
+                if (channel != null)
+                    try {
+                        channel.close();
+                    } catch (IOException e) {
+                    }
+            }
+        }
+
+        /**
+         * Decide whether a copy or move batch should go through the
+         * {@link TransferScheduler}. Limits come from the global preferences.
+         */
+        private boolean runScheduled(OpenPath[] params) {
+            Preferences prefs = new Preferences(mContext);
+            TransferScheduler scheduler = new TransferScheduler(
+                    prefs.getInt("global", "pref_transfer_host_limit",
+                            TransferScheduler.DEFAULT_HOST_LIMIT),
+                    prefs.getInt("global", "pref_transfer_device_limit",
+                            TransferScheduler.DEFAULT_DEVICE_LIMIT));
+            if (scheduler.getConcurrency(params, mIntoPath) < 2)
+                return false;
+            mScheduler = scheduler;
+            return true;
+        }
+
+        /**
+         * Per item work for a scheduled batch. Runs on the scheduler's worker
+         * threads, so it only touches state that is safe to share.
+         */
+        private class ScheduledTransfer implements TransferScheduler.TransferWorker {
+            private final boolean mMove;
+
+            ScheduledTransfer(boolean move) {
+                mMove = move;
+            }
+
+            public boolean transfer(OpenPath source, OpenPath intoDir) {
+                // moves were already tried as renames in doInBackground
+                try {
+                    if (!copyToDirectory(source, intoDir))
+                        return false;
+                } catch (IOException e) {
+                    Logger.LogError("Couldn't copy file (" + source.getName() + " to "
+                            + intoDir.getPath() + ")", e);
+                    return false;
+                }
+                // the copy is complete (and verified, if enabled) unless cancelled since
+                if (isCancelled())
+                    return false;
+                if (mMove)
+                    mFileMang.deleteTarget(source);
+                return true;
+            }
+
+            public boolean isCancelled() {
+                return BackgroundWork.this.isCancelled();
+            }
+
+            public void onItemStarted(OpenPath source, int completed) {
+                mCurrentIndex = completed;
+                mCurrentPath = source;
+                if (source.requiresThread())
+                    isDownload = true;
+                publishProgress();
+            }
+        }
+
+        /**
+         * Move every path that can be renamed in place, before anything is
+         * walked or copied, so a move within one volume or share doesn't pay
+         * for a tree walk it doesn't need.
+         *
+         * @return The paths that still have to be copied and deleted.
+         */
+        private OpenPath[] moveByRename(OpenPath[] params) {
+            ArrayList<OpenPath> rest = new ArrayList<OpenPath>();
+            for (int i = 0; i < params.length; i++) {
+                if (isCancelled())
+                    return new OpenPath[0];
+                mCurrentIndex = i;
+                mCurrentPath = params[i];
+                publishProgress();
+                if (params[i] != null && !moveByRename(params[i], mIntoPath))
+                    rest.add(params[i]);
+            }
+            return rest.toArray(new OpenPath[rest.size()]);
+        }
+
+        /**
+         * Try to move a path with a single rename when source and destination
+         * live on the same volume. Returns false if the caller should fall
+         * back to copy and delete.
+         */
+        private boolean moveByRename(OpenPath old, OpenPath intoDir) {
+            if (intoDir instanceof OpenSmartFolder)
+                intoDir = ((OpenSmartFolder)intoDir).getFirstDir();
+            if (intoDir == null || !(old instanceof OpenPathMovable))
+                return false;
+            OpenPathMovable mover = (OpenPathMovable)old;
+            if (!mover.isSameVolume(intoDir))
+                return false;
+            if (intoDir.getChild(getTargetName(old)).exists())
+                return false;
+            if (!mover.moveTo(intoDir, getTargetName(old)))
+                return false;
+            Logger.LogDebug("EventHandler.moveByRename : Renamed [" + old.getPath() + "] into ["
+                    + intoDir.getPath() + "]");
+            return true;
+        }
+
+        private Boolean copyToDirectory(OpenPath old, OpenPath intoDir) throws IOException {
             if (old.equals(intoDir))
                 return false;
+            if (mManifest != null)
+                mManifest.beginFile();
             if(checkCloudDownload(old, intoDir))
                 return true;
             if(checkCloudUpload(old, intoDir))
                 return true;
-            if (old instanceof OpenFile && !old.isDirectory() && intoDir instanceof OpenFile)
-                if (copyFileToDirectory((OpenFile)old, (OpenFile)intoDir, total))
+            if (old instanceof OpenFile && !old.isDirectory() && intoDir instanceof OpenFile) {
+                if (copyFileToDirectory((OpenFile)old, (OpenFile)intoDir))
                     return true;
+                if (isCancelled())
+                    return false;
+            }
             if (old instanceof OpenSMB && intoDir instanceof OpenSMB) {
                 Logger.LogVerbose("EventHandler.copyToDirectory : Using OpenSMB Channel copy");
                 if (((OpenSMB)old).copyTo((OpenSMB)intoDir))
@@ -1355,26 +1747,19 @@ public class EventHandler {
                 return false;
             }
             if (old.isDirectory()) {
-                newDir = newDir.getChild(old.getName());
+                newDir = newDir.getChild(getTargetName(old));
                 if (!newDir.exists() && !newDir.mkdir()) {
                     Logger.LogWarning("Couldn't create initial destination file.");
                 }
             }
-            byte[] data = new byte[FileManager.BUFFER];
-            int read = 0;
-
             if (old.isDirectory() && newDir.isDirectory() && newDir.canWrite()) {
                 OpenPath[] files = old.list();
                 
                 if(files == null)
                 	files = old.listFiles();
 
-                for (OpenPath file : files)
-                    if (file != null)
-                        total += (int)file.length();
-
                 for (int i = 0; i < files.length; i++)
-                    if (files[i] != null && !copyToDirectory(files[i], newDir, total)) {
+                    if (files[i] != null && !copyToDirectory(files[i], newDir)) {
                         Logger.LogWarning("Couldn't copy " + files[i].getName() + ".");
                         return false;
                     }
@@ -1385,7 +1770,7 @@ public class EventHandler {
                 // OpenFile) {
                 // ((OpenSMB)old).copyTo((OpenFile)newDir, this);
             } else if (old.isFile() && newDir.isDirectory() && newDir.canWrite()) {
-                OpenPath newFile = newDir.getChild(old.getName());
+                OpenPath newFile = newDir.getChild(getTargetName(old));
                 if (newFile.getPath().equals(old.getPath())) {
                     Logger.LogWarning("Old = new");
                     return false;
@@ -1395,6 +1780,8 @@ public class EventHandler {
                     Logger.LogWarning("Couldn't create initial destination file.");
                     return false;
                 }
+                if (old instanceof OpenNetworkPath.ResumableDownload && newFile instanceof OpenFile)
+                    return copyResumable((OpenNetworkPath)old, (OpenFile)newFile);
                 if (old instanceof OpenPathCopyable && newFile instanceof OpenStream)
                 {
                     try {
@@ -1408,30 +1795,38 @@ public class EventHandler {
                 if (old instanceof OpenStream && newFile instanceof OpenStream)
                 {
                 	Logger.LogDebug("Copying Stream -> Stream");
-                    int size = (int)old.length();
-                    int pos = 0;
+                    final long size = old.length();
 
-                    BufferedInputStream i_stream = null;
-                    BufferedOutputStream o_stream = null;
+                    InputStream i_stream = null;
+                    OutputStream o_stream = null;
                     try {
                         Logger.LogDebug("Writing " + newFile.getPath());
-                        i_stream = new BufferedInputStream(((OpenStream)old).getInputStream());
-                        o_stream = new BufferedOutputStream(((OpenStream)newFile).getOutputStream());
-
-                        while ((read = i_stream.read(data, 0,
-                                size > 0 ? Math.min(size - pos, FileManager.BUFFER) : FileManager.BUFFER)) != -1) {
-                            o_stream.write(data, 0, read);
-                            pos += read;
-                            if (size > 0 && pos >= size)
-                                break;
-                            publishMyProgress(pos, Math.max(pos, size));
-                        }
+                        i_stream = ((OpenStream)old).getInputStream();
+                        o_stream = ((OpenStream)newFile).getOutputStream();
+
+                        MessageDigest digest = mVerify && newFile instanceof OpenFile
+                                ? CopyVerifier.newDigest() : null;
+                        long written = newCopier().copy(i_stream, o_stream,
+                                size > 0 ? size : -1,
+                                new PipedCopier.CopyListener() {
+                                    public void onCopyProgress(long bytes) {
+                                        publishBytes(bytes, Math.max(bytes, size));
+                                    }
+
+                                    public boolean isCancelled() {
+                                        return BackgroundWork.this.isCancelled();
+                                    }
+                                }, digest);
+                        if (written < size)
+                            throw new IOException("Short copy of " + old + ": " + written
+                                    + " of " + size + " bytes");
 
                         o_stream.flush();
                         i_stream.close();
                         o_stream.close();
 
-                        success = true;
+                        success = digest == null
+                                || checkVerified(old, (OpenFile)newFile, digest);
 
                     } catch (NullPointerException e) {
                         Logger.LogError("Null pointer trying to copy file.", e);
@@ -1637,15 +2032,24 @@ public class EventHandler {
             // OnWorkerProgressUpdate(current, total);
         }
 
-        private long lastPublish = 0l;
-
         public void publishMyProgress(Integer... values) {
-            if (new Date().getTime() - lastPublish < 500)
+            if (!mMetrics.shouldPublish())
                 return;
-            lastPublish = new Date().getTime();
             publishProgress(values);
         }
 
+        /**
+         * Report bytes of the file being copied on the calling thread. During
+         * a copy or move the batch totals come from the manifest, so the
+         * values published here only trigger an update.
+         */
+        private void publishBytes(long fileBytes, long fileSize) {
+            if (mManifest != null)
+                mMetrics.update(mManifest.report(fileBytes));
+            publishMyProgress((int)Math.min(fileBytes, Integer.MAX_VALUE),
+                    (int)Math.min(fileSize, Integer.MAX_VALUE));
+        }
+
         public int getProgressA() {
             return (int)(((float)mLastProgress[0] / (float)mLastProgress[1]) * 1000f);
         }
@@ -1657,13 +2061,18 @@ public class EventHandler {
         @SuppressWarnings("unused")
         @Override
         protected void onProgressUpdate(Integer... values) {
-            int current = 0, size = 0, total = 0;
-            if (values.length > 0)
-                current = size = total = values[0];
-            if (values.length > 1)
-                size = total = values[1];
-            if (values.length > 2)
-                total = Math.max(total, values[2]);
+            long current = 0, size = 0, total = 0;
+            if (mManifest != null) {
+                current = mManifest.getBytesDone();
+                size = total = mManifest.getBytesTotal();
+            } else {
+                if (values.length > 0)
+                    current = size = total = values[0];
+                if (values.length > 1)
+                    size = total = values[1];
+                if (values.length > 2)
+                    total = Math.max(total, values[2]);
+            }
 
             // if(mThreadListener != null)
             // mThreadListener.onWorkerProgressUpdate(current, size);
@@ -1680,15 +2089,12 @@ public class EventHandler {
             int progA = (int)(((float)current / (float)size) * 1000f);
             int progB = (int)(((float)current / (float)total) * 1000f);
 
-            mElapsed = new Date().getTime() - mStart.getTime();
-            if (mElapsed / 1000 > 0) {
-                mLastRate = ((long)current) / (mElapsed / 1000);
-                if (mLastRate > 0)
-                    mRemain = Utils.getAverage(mRemain, (long)(size - current) / mLastRate);
-            }
+            mElapsed = mMetrics.getDuration();
+            mLastRate = mMetrics.getRate();
+            mRemain = mMetrics.getRemaining(size - current);
 
             // publish(current, size, total);
-            OnWorkerProgressUpdate(current, total);
+            OnWorkerProgressUpdate(progB, 1000);
 
             Logger.LogInfo("onProgressUpdate(" + current + ", " + size + ", " + total +
             		")-(" + progA + "," + progB + ")-> " + mRemain + "::" + mLastRate);
@@ -1765,6 +2171,8 @@ public class EventHandler {
             // NotificationManager mNotifier =
             // (NotificationManager)mContext.getSystemService(Context.NOTIFICATION_SERVICE);
             Logger.LogDebug("EventHandler.onPostExecute(" + mIntoPath + ")");
+            mMetrics.finish();
+            Logger.LogInfo("EventHandler." + mType + " : " + mMetrics);
             mNotifier.cancel(BACKGROUND_NOTIFICATION_ID);
 
             if (mPDialog != null && mPDialog.isShowing())
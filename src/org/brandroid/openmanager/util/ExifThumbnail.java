@@ -0,0 +1,155 @@
+
+package org.brandroid.openmanager.util;
+
+import java.io.BufferedInputStream;
+import java.io.DataInputStream;
+import java.io.EOFException;
+import java.io.File;
+import java.io.FileInputStream;
+import java.io.IOException;
+import java.io.InputStream;
+
+/**
+ * Reads the thumbnail most cameras embed in a JPEG's EXIF (APP1) segment.
+ * Only the segments before the image data are read, which for a camera
+ * JPEG is the first few dozen KB instead of the whole file. The stream is
+ * read in order and never reset, so this works on network streams too.
+ */
+public class ExifThumbnail {
+    private static final int SOI = 0xFFD8;
+    private static final int APP1 = 0xFFE1;
+    private static final int SOS = 0xFFDA;
+    private static final int EOI = 0xFFD9;
+    /** Segments to look through before giving up on finding APP1. */
+    private static final int MAX_SEGMENTS = 16;
+
+    private static final int TAG_COMPRESSION = 0x0103;
+    private static final int TAG_JPEG_OFFSET = 0x0201;
+    private static final int TAG_JPEG_LENGTH = 0x0202;
+    private static final int COMPRESSION_JPEG = 6;
+    private static final int TYPE_SHORT = 3;
+
+    public static boolean isJpeg(String name) {
+        if (name == null)
+            return false;
+        name = name.toLowerCase();
+        return name.endsWith(".jpg") || name.endsWith(".jpeg");
+    }
+
+    public static byte[] read(File file) {
+        InputStream in = null;
+        try {
+            in = new BufferedInputStream(new FileInputStream(file), 8192);
+            return read(in);
+        } catch (IOException e) {
+            return null;
+        } finally {
+            if (in != null)
+                try {
+                    in.close();
+                } catch (IOException e) {
+                }
+        }
+    }
+
+    /**
+     * Returns the embedded JPEG thumbnail, or null if there is none.
+     */
+    public static byte[] read(InputStream stream) throws IOException {
+        DataInputStream in = new DataInputStream(stream);
+        try {
+            if (in.readUnsignedShort() != SOI)
+                return null;
+            for (int i = 0; i < MAX_SEGMENTS; i++) {
+                int marker = in.readUnsignedShort();
+                if ((marker & 0xFF00) != 0xFF00 || marker == SOS || marker == EOI)
+                    return null;
+                int len = in.readUnsignedShort() - 2;
+                if (len < 0)
+                    return null;
+                if (marker != APP1 || len < 14) {
+                    skipFully(in, len);
+                    continue;
+                }
+                byte[] segment = new byte[len];
+                in.readFully(segment);
+                // other APP1 segments (XMP) may come first
+                if (segment[0] == 'E' && segment[1] == 'x' && segment[2] == 'i'
+                        && segment[3] == 'f' && segment[4] == 0 && segment[5] == 0) {
+                    byte[] thumb = parseTiff(segment, 6);
+                    if (thumb != null)
+                        return thumb;
+                }
+            }
+        } catch (EOFException e) {
+        }
+        return null;
+    }
+
+    private static void skipFully(InputStream in, int len) throws IOException {
+        while (len > 0) {
+            long skipped = in.skip(len);
+            if (skipped <= 0) {
+                if (in.read() < 0)
+                    throw new EOFException();
+                skipped = 1;
+            }
+            len -= skipped;
+        }
+    }
+
+    /**
+     * Find the thumbnail in IFD1 of the TIFF structure at b[start].
+     */
+    private static byte[] parseTiff(byte[] b, int start) {
+        try {
+            boolean le;
+            if (b[start] == 'I' && b[start + 1] == 'I')
+                le = true;
+            else if (b[start] == 'M' && b[start + 1] == 'M')
+                le = false;
+            else
+                return null;
+            int ifd0 = start + readInt(b, start + 4, le);
+            int ifd1 = readInt(b, ifd0 + 2 + readShort(b, ifd0, le) * 12, le);
+            if (ifd1 <= 0)
+                return null;
+            int pos = start + ifd1;
+            int count = readShort(b, pos, le);
+            int offset = 0, length = 0, compression = COMPRESSION_JPEG;
+            for (int i = 0; i < count; i++) {
+                int e = pos + 2 + i * 12;
+                int tag = readShort(b, e, le);
+                int value = readShort(b, e + 2, le) == TYPE_SHORT ? readShort(b, e + 8, le)
+                        : readInt(b, e + 8, le);
+                if (tag == TAG_JPEG_OFFSET)
+                    offset = value;
+                else if (tag == TAG_JPEG_LENGTH)
+                    length = value;
+                else if (tag == TAG_COMPRESSION)
+                    compression = value;
+            }
+            // corrupt fields can be anything, so compare without overflowing
+            if (compression != COMPRESSION_JPEG || offset <= 0 || length <= 0
+                    || offset > b.length - start || length > b.length - start - offset)
+                return null;
+            byte[] ret = new byte[length];
+            System.arraycopy(b, start + offset, ret, 0, length);
+            return ret;
+        } catch (ArrayIndexOutOfBoundsException e) {
+            return null;
+        }
+    }
+
+    private static int readShort(byte[] b, int pos, boolean le) {
+        if (le)
+            return (b[pos] & 0xFF) | (b[pos + 1] & 0xFF) << 8;
+        return (b[pos] & 0xFF) << 8 | (b[pos + 1] & 0xFF);
+    }
+
+    private static int readInt(byte[] b, int pos, boolean le) {
+        if (le)
+            return readShort(b, pos, true) | readShort(b, pos + 2, true) << 16;
+        return readShort(b, pos, false) << 16 | readShort(b, pos + 2, false);
+    }
+}
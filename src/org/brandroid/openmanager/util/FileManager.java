@@ -21,7 +21,6 @@ package org.brandroid.openmanager.util;
 import java.util.ArrayList;
 import java.util.Hashtable;
 import java.util.List;
-import java.util.WeakHashMap;
 import java.io.File;
 import java.io.BufferedInputStream;
 import java.io.BufferedOutputStream;
@@ -81,7 +80,7 @@ public class FileManager {
     private boolean mShowHiddenFiles = false;
     private SortType mSorting = SortType.ALPHA;
     private long mDirSize = 0;
-    private static WeakHashMap<String, OpenPath> mOpenCache = new WeakHashMap<String, OpenPath>();
+    private static final PathCache mOpenCache = new PathCache();
     public static UserInfo DefaultUserInfo;
     private OnProgressUpdateCallback mCallback = null;
 
@@ -269,18 +268,26 @@ public class FileManager {
     }
 
     public static void clearOpenCache() {
-        if (mOpenCache != null)
-            mOpenCache.clear();
+        Logger.LogDebug("FileManager.clearOpenCache: " + mOpenCache);
+        mOpenCache.clear();
     }
 
     public static boolean hasOpenCache(String path) {
-        return mOpenCache != null && mOpenCache.containsKey(path);
+        return mOpenCache.contains(path);
     }
 
     public static OpenPath removeOpenCache(String path) {
         return mOpenCache.remove(path);
     }
 
+    /**
+     * Drop a path that was just changed, everything below it, and its parent.
+     */
+    public static void invalidateOpenCache(OpenPath path) {
+        mOpenCache.invalidate(path);
+        ListingPrefetcher.invalidate(path);
+    }
+
     public static OpenPath getOpenCache(String path) {
         return getOpenCache(path, null);
     }
@@ -288,7 +295,9 @@ public class FileManager {
     public static OpenPath getOpenCache(String path, Context c) {
         if (path == null)
             return null;
-        OpenPath ret = null;
+        OpenPath ret = mOpenCache.get(path);
+        if (ret != null)
+            return ret;
         if (path.startsWith("/"))
         {
             ret = new OpenFile(path);
@@ -330,7 +339,7 @@ public class FileManager {
             ret = new OpenContent(Uri.parse(path), c);
         else
             ret = null;
-        return ret;
+        return mOpenCache.put(path, ret);
     }
 
     public static boolean checkForNoMedia(OpenPath defPath) {
@@ -358,11 +367,9 @@ public class FileManager {
         if (path == null)
             return null;
         // Logger.LogDebug("Checking cache for " + path);
-        if (mOpenCache == null)
-            mOpenCache = new WeakHashMap<String, OpenPath>();
         OpenPath ret = mOpenCache.get(path);
-        OpenServers servers = OpenServers.getDefaultServers();
         if (ret == null) {
+            OpenServers servers = OpenServers.getDefaultServers();
             if (path.startsWith("ftp:/") && servers != null) {
                 Logger.LogDebug("Checking cache for " + path);
                 FTPManager man = new FTPManager(path);
@@ -551,11 +558,12 @@ public class FileManager {
             // || ret.getExtension().equalsIgnoreCase("win")))
             // ret = new OpenTar((OpenFile)ret);
             if (ret.requiresThread() && bGetNetworkedFiles) {
-                if (ret.listFiles() != null)
-                    setOpenCache(path, ret);
+                ret.listFiles();
+                setOpenCache(path, ret);
             } else if (ret instanceof OpenNetworkPath) {
-                if (ret.listFromDb(sort))
-                    setOpenCache(path, ret);
+                ret.listFromDb(sort);
+                // keep even if unlisted, so the server lookup isn't repeated
+                setOpenCache(path, ret);
             }
         }
         // if(ret == null)
@@ -565,18 +573,16 @@ public class FileManager {
     }
     
     public static OpenPath setOpenCache(OpenPath file) {
-    	mOpenCache.put(file.getPath(), file);
-    	return file;
+    	return mOpenCache.put(file.getPath(), file);
     }
 
     public static OpenPath setOpenCache(String path, OpenPath file) {
         // Logger.LogDebug("FileManager.setOpenCache(" + path + ")");
-        mOpenCache.put(path, file);
-        return file;
+        return mOpenCache.put(path, file);
     }
 
     public static void addCacheToDb() {
-        for (OpenPath path : mOpenCache.values())
+        for (OpenPath path : mOpenCache.getPaths())
             path.addToDb();
     }
 
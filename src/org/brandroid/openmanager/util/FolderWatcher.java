@@ -0,0 +1,122 @@
+
+package org.brandroid.openmanager.util;
+
+import java.util.LinkedHashSet;
+import java.util.Set;
+
+import org.brandroid.openmanager.data.OpenFile;
+
+import android.os.FileObserver;
+import android.os.Handler;
+import android.os.HandlerThread;
+import android.os.Process;
+
+/**
+ * Watches the local folder a fragment is showing and reports which entries
+ * changed. Events are collected for {@link #DELAY} ms after the first one,
+ * then reported together, so a camera burst or a download writing into the
+ * folder causes a few small updates instead of a relist for every event.
+ * Reports are made on a shared background thread.
+ */
+public class FolderWatcher {
+    public static final long DELAY = 500;
+    /** Past this many changed names in one report, just list the folder again. */
+    public static final int MAX_CHANGES = 256;
+    private static final int EVENTS = FileObserver.CREATE | FileObserver.DELETE
+            | FileObserver.MOVED_FROM | FileObserver.MOVED_TO | FileObserver.CLOSE_WRITE
+            | FileObserver.ATTRIB | FileObserver.DELETE_SELF | FileObserver.MOVE_SELF;
+
+    private static Handler mHandler;
+
+    public interface OnFolderChangedListener {
+        /**
+         * @param names The names of the entries that were created, deleted or
+         *            changed, or null if the whole folder should be listed
+         *            again.
+         */
+        public void onFolderChanged(OpenFile folder, Set<String> names);
+    }
+
+    private final OnFolderChangedListener mListener;
+    private OpenFile mFolder = null;
+    private FileObserver mObserver = null;
+    private final Set<String> mChanged = new LinkedHashSet<String>();
+    private boolean mRelist = false;
+
+    public FolderWatcher(OnFolderChangedListener listener) {
+        mListener = listener;
+    }
+
+    private static synchronized Handler getHandler() {
+        if (mHandler == null) {
+            HandlerThread thread = new HandlerThread("FolderWatcher",
+                    Process.THREAD_PRIORITY_BACKGROUND);
+            thread.start();
+            mHandler = new Handler(thread.getLooper());
+        }
+        return mHandler;
+    }
+
+    private final Runnable mFlush = new Runnable() {
+        public void run() {
+            OpenFile folder;
+            Set<String> names;
+            synchronized (mChanged) {
+                folder = mFolder;
+                names = mRelist ? null : new LinkedHashSet<String>(mChanged);
+                mChanged.clear();
+                mRelist = false;
+            }
+            if (folder != null)
+                mListener.onFolderChanged(folder, names);
+        }
+    };
+
+    /**
+     * Start watching a folder, and stop watching the last one. Does nothing
+     * if the folder is already being watched.
+     */
+    public void watch(final OpenFile folder) {
+        synchronized (mChanged) {
+            if (folder.equals(mFolder))
+                return;
+        }
+        stop();
+        FileObserver observer = new FileObserver(folder.getPath(), EVENTS) {
+            public void onEvent(int event, String path) {
+                boolean first;
+                synchronized (mChanged) {
+                    if (mObserver != this)
+                        return;
+                    first = mChanged.isEmpty() && !mRelist;
+                    if (path == null || (event & (DELETE_SELF | MOVE_SELF)) != 0
+                            || mChanged.size() >= MAX_CHANGES)
+                        mRelist = true;
+                    else
+                        mChanged.add(path);
+                }
+                if (first)
+                    getHandler().postDelayed(mFlush, DELAY);
+            }
+        };
+        synchronized (mChanged) {
+            mFolder = folder;
+            mObserver = observer;
+        }
+        observer.startWatching();
+    }
+
+    public void stop() {
+        FileObserver observer;
+        synchronized (mChanged) {
+            observer = mObserver;
+            mObserver = null;
+            mFolder = null;
+            mChanged.clear();
+            mRelist = false;
+        }
+        getHandler().removeCallbacks(mFlush);
+        if (observer != null)
+            observer.stopWatching();
+    }
+}
@@ -0,0 +1,185 @@
+
+package org.brandroid.openmanager.util;
+
+import java.util.ArrayList;
+import java.util.LinkedHashMap;
+import java.util.Map;
+import java.util.concurrent.Future;
+import java.util.concurrent.LinkedBlockingQueue;
+import java.util.concurrent.ThreadFactory;
+import java.util.concurrent.ThreadPoolExecutor;
+import java.util.concurrent.TimeUnit;
+
+import org.brandroid.openmanager.data.OpenNetworkPath;
+import org.brandroid.openmanager.data.OpenPath;
+import org.brandroid.utils.Logger;
+
+import android.os.Process;
+
+/**
+ * Lists the first few subfolders of a remote folder in the background once
+ * the folder itself has been listed, so opening one of them shows its
+ * contents without waiting for another round trip. Each fragment owns a
+ * prefetcher and cancels it when it moves to another folder. The work runs
+ * on a small shared pool of background priority threads, and a listing is
+ * handed out once by {@link #take(OpenPath)}, so a later refresh goes to the
+ * server.
+ * <p>
+ * Each subfolder is listed through {@link OpenNetworkPath#copyForListing()},
+ * so the objects on screen keep their children. Listings over a connection
+ * the server shares wait on the same lock as the foreground listing.
+ */
+public class ListingPrefetcher {
+    /** Subfolders listed after each folder. */
+    public static final int MAX_FOLDERS = 8;
+    public static final long MAX_AGE = 60 * 1000;
+    private static final int THREADS = 2;
+    private static final int MAX_QUEUED = 32;
+    private static final int MAX_LISTINGS = 32;
+
+    private static final ThreadPoolExecutor mWorkers = new ThreadPoolExecutor(THREADS,
+            THREADS, 30, TimeUnit.SECONDS, new LinkedBlockingQueue<Runnable>(MAX_QUEUED),
+            new ThreadFactory() {
+                public Thread newThread(final Runnable r) {
+                    Thread t = new Thread(new Runnable() {
+                        public void run() {
+                            Process.setThreadPriority(Process.THREAD_PRIORITY_BACKGROUND);
+                            r.run();
+                        }
+                    }, "ListingPrefetcher");
+                    t.setDaemon(true);
+                    return t;
+                }
+            }, new ThreadPoolExecutor.DiscardOldestPolicy());
+
+    private static class Listing {
+        final OpenPath[] kids;
+        final long time;
+
+        Listing(OpenPath[] kids) {
+            this.kids = kids;
+            this.time = System.currentTimeMillis();
+        }
+    }
+
+    private static final LinkedHashMap<String, Listing> mListings =
+            new LinkedHashMap<String, Listing>(16, 0.75f, true) {
+        private static final long serialVersionUID = 1L;
+
+        @Override
+        protected boolean removeEldestEntry(Map.Entry<String, Listing> eldest) {
+            return size() > MAX_LISTINGS;
+        }
+    };
+
+    private final ArrayList<Future<?>> mTasks = new ArrayList<Future<?>>();
+    /** Bumped by {@link #cancel()}, so tasks already running drop their results. */
+    private volatile int mGeneration = 0;
+
+    /**
+     * Only remote folders are worth it. Local folders list faster than the
+     * prefetch could be scheduled.
+     */
+    public static boolean canPrefetch(OpenPath folder) {
+        return folder instanceof OpenNetworkPath;
+    }
+
+    /**
+     * Queue the first {@link #MAX_FOLDERS} subfolders of a folder that was
+     * just listed, in the order they are shown.
+     */
+    public void prefetch(OpenPath folder, OpenPath[] kids, SortType sort) {
+        if (!canPrefetch(folder) || kids == null)
+            return;
+        ArrayList<OpenPath> folders = new ArrayList<OpenPath>();
+        for (OpenPath kid : kids)
+            if (kid != null && canPrefetch(kid) && kid.isDirectory() && !isFresh(kid))
+                folders.add(kid);
+        if (sort != null)
+            SortKey.sort(folders, sort);
+        final int generation = mGeneration;
+        synchronized (mTasks) {
+            for (int i = mTasks.size() - 1; i >= 0; i--)
+                if (mTasks.get(i).isDone())
+                    mTasks.remove(i);
+            for (int i = 0; i < folders.size() && i < MAX_FOLDERS; i++) {
+                final OpenPath kid = folders.get(i);
+                mTasks.add(mWorkers.submit(new Runnable() {
+                    public void run() {
+                        if (generation != mGeneration)
+                            return;
+                        list(kid, generation);
+                    }
+                }));
+            }
+        }
+    }
+
+    private void list(OpenPath kid, int generation) {
+        OpenNetworkPath folder = ((OpenNetworkPath)kid).copyForListing();
+        if (folder == null)
+            return;
+        try {
+            OpenPath[] kids = folder.listFiles();
+            if (kids == null || generation != mGeneration)
+                return;
+            synchronized (mListings) {
+                mListings.put(folder.getAbsolutePath(), new Listing(kids));
+            }
+            FileManager.setOpenCache(folder.getAbsolutePath(), folder);
+        } catch (Exception e) {
+            Logger.LogWarning("ListingPrefetcher: Unable to list " + folder, e);
+        }
+    }
+
+    /**
+     * Stop queued prefetches, and have running ones drop their results.
+     * Running listings aren't interrupted, since that would break the
+     * connection they share. Call when the user leaves the folder they were
+     * prefetched for.
+     */
+    public void cancel() {
+        mGeneration++;
+        synchronized (mTasks) {
+            for (Future<?> task : mTasks)
+                task.cancel(false);
+            mTasks.clear();
+        }
+    }
+
+    private static boolean isFresh(OpenPath folder) {
+        synchronized (mListings) {
+            Listing l = mListings.get(folder.getAbsolutePath());
+            return l != null && System.currentTimeMillis() - l.time < MAX_AGE;
+        }
+    }
+
+    /**
+     * Returns the prefetched children of a folder and forgets them, or null
+     * if the folder was not prefetched in the last {@link #MAX_AGE} ms.
+     */
+    public static OpenPath[] take(OpenPath folder) {
+        if (folder == null)
+            return null;
+        synchronized (mListings) {
+            Listing l = mListings.remove(folder.getAbsolutePath());
+            if (l == null || System.currentTimeMillis() - l.time >= MAX_AGE)
+                return null;
+            return l.kids;
+        }
+    }
+
+    /**
+     * Drop prefetched listings of a path that was changed, and of its parent.
+     */
+    public static void invalidate(OpenPath path) {
+        if (path == null)
+            return;
+        OpenPath parent = path.getParent();
+        synchronized (mListings) {
+            mListings.remove(path.getAbsolutePath());
+            if (parent != null)
+                mListings.remove(parent.getAbsolutePath());
+        }
+    }
+}
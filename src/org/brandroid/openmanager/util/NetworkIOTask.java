@@ -234,18 +234,17 @@ public class NetworkIOTask extends AsyncTask<OpenPath, OpenPath, OpenPath[]> imp
                 new Thread(new Runnable() {
                     public void run() {
                         long start = new Date().getTime();
-                        int dels = 0, adds = 0;
-                        dels = params[0].deleteFolderFromDb();
+                        int adds = 0;
                         OpenPathDbAdapter db = OpenPath.getDb();
                         if (db != null)
-                            adds += db.createItem(result);
+                            adds += db.replaceFolder(params[0], result);
                         else
                             for (OpenPath path : result)
                                 if (path != null)
                                     if (mPath.addToDb())
                                         adds++;
-                        Logger.LogVerbose("Finished updating OpenPath DB Cache" + "(-" + dels
-                                + ",+" + adds + ") in " + ((new Date().getTime() - start) / 1000)
+                        Logger.LogVerbose("Finished updating OpenPath DB Cache" + "(+" + adds
+                                + ") in " + ((new Date().getTime() - start) / 1000)
                                 + " seconds for " + params[0].getPath());
                         OpenPath.closeDb();
                     }
@@ -0,0 +1,145 @@
+
+package org.brandroid.openmanager.util;
+
+import java.util.Iterator;
+import java.util.LinkedHashMap;
+import java.util.Map;
+
+import org.brandroid.openmanager.data.OpenPath;
+
+/**
+ * Resolved paths by their path string, so going back to a server folder
+ * reuses the object (and the children it has already listed) instead of
+ * parsing the URI, looking up credentials in OpenServers and listing again.
+ * Entries are dropped least recently used first past {@link #MAX_ENTRIES},
+ * expire after a time that depends on the scheme, and are invalidated
+ * explicitly when an operation changes them.
+ */
+public class PathCache {
+    public static final int MAX_ENTRIES = 512;
+    /** Local paths are cheap to recreate, and change without notice. */
+    public static final long TTL_LOCAL = 30 * 1000;
+    public static final long TTL_NETWORK = 5 * 60 * 1000;
+    /** Cloud paths hold tokens and ids that are slow to look up. */
+    public static final long TTL_CLOUD = 10 * 60 * 1000;
+
+    private static class Entry {
+        final OpenPath path;
+        final long expires;
+
+        Entry(OpenPath path, long expires) {
+            this.path = path;
+            this.expires = expires;
+        }
+    }
+
+    private final LinkedHashMap<String, Entry> mEntries = new LinkedHashMap<String, Entry>(
+            64, 0.75f, true) {
+        private static final long serialVersionUID = 1L;
+
+        @Override
+        protected boolean removeEldestEntry(Map.Entry<String, Entry> eldest) {
+            if (size() <= MAX_ENTRIES)
+                return false;
+            mEvictions++;
+            return true;
+        }
+    };
+    private int mHits = 0;
+    private int mMisses = 0;
+    private int mEvictions = 0;
+
+    public static long getTTL(String path) {
+        if (path.startsWith("/") || path.startsWith("file:") || path.startsWith("content:"))
+            return TTL_LOCAL;
+        if (path.startsWith("smb:") || path.startsWith("sftp:") || path.startsWith("ftp:")
+                || path.startsWith("scp:"))
+            return TTL_NETWORK;
+        return TTL_CLOUD;
+    }
+
+    /**
+     * Returns the cached path, or null if there is none or it has expired.
+     */
+    public synchronized OpenPath get(String key) {
+        Entry e = mEntries.get(key);
+        if (e != null && e.expires < System.currentTimeMillis()) {
+            mEntries.remove(key);
+            e = null;
+        }
+        if (e == null) {
+            mMisses++;
+            return null;
+        }
+        mHits++;
+        return e.path;
+    }
+
+    public synchronized boolean contains(String key) {
+        Entry e = mEntries.get(key);
+        return e != null && e.expires >= System.currentTimeMillis();
+    }
+
+    public synchronized OpenPath put(String key, OpenPath path) {
+        if (key == null || path == null)
+            return path;
+        mEntries.put(key, new Entry(path, System.currentTimeMillis() + getTTL(key)));
+        return path;
+    }
+
+    public synchronized OpenPath remove(String key) {
+        Entry e = mEntries.remove(key);
+        return e != null ? e.path : null;
+    }
+
+    /**
+     * Drop a path that was changed, everything below it, and its parent,
+     * whose listing now differs.
+     */
+    public void invalidate(OpenPath path) {
+        if (path == null)
+            return;
+        OpenPath parent = path.getParent();
+        String[] keys = new String[] {
+                path.getPath(), path.getAbsolutePath(),
+                parent != null ? parent.getPath() : null,
+                parent != null ? parent.getAbsolutePath() : null
+        };
+        synchronized (this) {
+            invalidateTree(keys[0]);
+            invalidateTree(keys[1]);
+            if (keys[2] != null)
+                mEntries.remove(keys[2]);
+            if (keys[3] != null)
+                mEntries.remove(keys[3]);
+        }
+    }
+
+    private void invalidateTree(String key) {
+        String prefix = key.endsWith("/") ? key : key + "/";
+        Iterator<String> keys = mEntries.keySet().iterator();
+        while (keys.hasNext()) {
+            String k = keys.next();
+            if (k.equals(key) || k.startsWith(prefix))
+                keys.remove();
+        }
+    }
+
+    public synchronized void clear() {
+        mEntries.clear();
+    }
+
+    public synchronized OpenPath[] getPaths() {
+        OpenPath[] ret = new OpenPath[mEntries.size()];
+        int i = 0;
+        for (Entry e : mEntries.values())
+            ret[i++] = e.path;
+        return ret;
+    }
+
+    @Override
+    public synchronized String toString() {
+        return mEntries.size() + " paths, " + mHits + " hits, " + mMisses + " misses, "
+                + mEvictions + " evicted";
+    }
+}
@@ -0,0 +1,234 @@
+
+package org.brandroid.openmanager.util;
+
+import java.io.IOException;
+import java.io.InputStream;
+import java.io.InterruptedIOException;
+import java.io.OutputStream;
+import java.security.MessageDigest;
+import java.util.ArrayList;
+import java.util.concurrent.ArrayBlockingQueue;
+import java.util.concurrent.ExecutorService;
+import java.util.concurrent.Executors;
+import java.util.concurrent.Future;
+
+import org.brandroid.utils.Logger;
+
+/**
+ * Two stage stream copier. A reader thread fills buffers taken from a bounded
+ * ring while the calling thread writes them out, so a slow source (network)
+ * and a slow destination (flash) are kept busy at the same time instead of
+ * taking turns. Each copy borrows a ring of buffers from a small shared pool
+ * and gives it back when done, so copiers are cheap to create and a run of
+ * small files doesn't allocate a new ring for each one.
+ */
+public class PipedCopier {
+    public static final int DEFAULT_BUFFER_COUNT = 4;
+    /** Idle rings kept for reuse. More can be lent at once. */
+    private static final int MAX_POOLED = 2;
+
+    private static final ExecutorService mReaders = Executors.newCachedThreadPool();
+    private static final Chunk END = new Chunk(0);
+    private static final ArrayList<Chunk[]> mPool = new ArrayList<Chunk[]>();
+
+    private final int mBufferSize;
+    private final int mBufferCount;
+    private TransferMetrics mMetrics = null;
+
+    public interface CopyListener {
+        /**
+         * Called on the writing thread after each buffer has been written.
+         *
+         * @param bytes Total bytes written so far.
+         */
+        public void onCopyProgress(long bytes);
+
+        public boolean isCancelled();
+    }
+
+    private static class Chunk {
+        final byte[] data;
+        int length = 0;
+
+        Chunk(int size) {
+            data = new byte[size];
+        }
+    }
+
+    public PipedCopier() {
+        this(FileManager.BUFFER, DEFAULT_BUFFER_COUNT);
+    }
+
+    public PipedCopier(int bufferSize, int bufferCount) {
+        mBufferSize = Math.max(1024, bufferSize);
+        mBufferCount = Math.max(2, bufferCount);
+    }
+
+    public int getBufferSize() {
+        return mBufferSize;
+    }
+
+    /**
+     * Record time spent blocked in reads and writes against metrics.
+     */
+    public void setMetrics(TransferMetrics metrics) {
+        mMetrics = metrics;
+    }
+
+    /**
+     * Lend a ring from the pool, or allocate one if none fits.
+     */
+    private Chunk[] borrowRing() {
+        synchronized (mPool) {
+            for (int i = mPool.size() - 1; i >= 0; i--) {
+                Chunk[] ring = mPool.get(i);
+                if (ring.length == mBufferCount && ring[0].data.length == mBufferSize)
+                    return mPool.remove(i);
+            }
+        }
+        Chunk[] ring = new Chunk[mBufferCount];
+        for (int i = 0; i < mBufferCount; i++)
+            ring[i] = new Chunk(mBufferSize);
+        return ring;
+    }
+
+    private static void returnRing(Chunk[] ring) {
+        synchronized (mPool) {
+            if (mPool.size() < MAX_POOLED)
+                mPool.add(ring);
+        }
+    }
+
+    public long copy(InputStream in, OutputStream out) throws IOException {
+        return copy(in, out, -1, null);
+    }
+
+    public long copy(InputStream in, OutputStream out, long limit, CopyListener listener)
+            throws IOException {
+        return copy(in, out, limit, listener, null);
+    }
+
+    /**
+     * Copy from one stream to another. Neither stream is closed.
+     *
+     * @param in Source stream, read on a background thread.
+     * @param out Destination stream, written on the calling thread.
+     * @param limit Maximum number of bytes to copy, or -1 to copy until EOF.
+     * @param listener Optional progress and cancellation callback.
+     * @param digest Optional digest updated with every byte written, so a
+     *            copy can be verified without reading the source again.
+     * @return Number of bytes written.
+     * @throws IOException if either side fails. Reader errors are rethrown
+     *             here after any buffered data has been written.
+     * @throws InterruptedIOException if the listener cancels the copy, so a
+     *             partial copy is never mistaken for a finished one.
+     */
+    public long copy(InputStream in, OutputStream out, long limit,
+            CopyListener listener, MessageDigest digest) throws IOException {
+        final Chunk[] ring = borrowRing();
+        final ArrayBlockingQueue<Chunk> free = new ArrayBlockingQueue<Chunk>(ring.length);
+        final ArrayBlockingQueue<Chunk> full = new ArrayBlockingQueue<Chunk>(ring.length + 1);
+        for (Chunk c : ring)
+            free.add(c);
+
+        final TransferMetrics metrics = mMetrics;
+        Reader reader = new Reader(in, limit, free, full, metrics);
+        Future<?> task = mReaders.submit(reader);
+        long written = 0;
+        boolean finished = false;
+        try {
+            while (true) {
+                Chunk c = full.take();
+                if (c == END)
+                    break;
+                if (c.length > 0) {
+                    long start = metrics != null ? System.nanoTime() : 0;
+                    out.write(c.data, 0, c.length);
+                    if (metrics != null)
+                        metrics.addWriteTime(System.nanoTime() - start);
+                    if (digest != null)
+                        digest.update(c.data, 0, c.length);
+                    written += c.length;
+                }
+                free.offer(c);
+                if (listener != null) {
+                    listener.onCopyProgress(written);
+                    if (listener.isCancelled())
+                        throw new InterruptedIOException("Copy cancelled after " + written
+                                + " bytes");
+                }
+            }
+            if (reader.mError != null)
+                throw reader.mError;
+            out.flush();
+            finished = true;
+        } catch (InterruptedException e) {
+            throw new InterruptedIOException("Copy interrupted after " + written + " bytes");
+        } finally {
+            if (finished)
+                returnRing(ring);
+            else {
+                // the reader may still be holding one of the buffers, so the
+                // ring is dropped rather than lent out again
+                reader.mAborted = true;
+                task.cancel(true);
+            }
+        }
+        return written;
+    }
+
+    private static class Reader implements Runnable {
+        private final InputStream mIn;
+        private final long mLimit;
+        private final ArrayBlockingQueue<Chunk> mFree, mFull;
+        private final TransferMetrics mMetrics;
+        volatile boolean mAborted = false;
+        volatile IOException mError = null;
+
+        Reader(InputStream in, long limit, ArrayBlockingQueue<Chunk> free,
+                ArrayBlockingQueue<Chunk> full, TransferMetrics metrics) {
+            mIn = in;
+            mLimit = limit;
+            mFree = free;
+            mFull = full;
+            mMetrics = metrics;
+        }
+
+        public void run() {
+            long pos = 0;
+            try {
+                while (!mAborted) {
+                    if (mLimit > -1 && pos >= mLimit)
+                        break;
+                    Chunk c = mFree.take();
+                    int want = c.data.length;
+                    if (mLimit > -1)
+                        want = (int)Math.min(want, mLimit - pos);
+                    long start = mMetrics != null ? System.nanoTime() : 0;
+                    int read = mIn.read(c.data, 0, want);
+                    if (mMetrics != null)
+                        mMetrics.addReadTime(System.nanoTime() - start);
+                    if (read == -1) {
+                        mFree.offer(c);
+                        break;
+                    }
+                    c.length = read;
+                    pos += read;
+                    mFull.put(c);
+                }
+            } catch (InterruptedException e) {
+                mAborted = true;
+            } catch (IOException e) {
+                if (!mAborted)
+                    mError = e;
+            } catch (RuntimeException e) {
+                if (!mAborted) {
+                    Logger.LogError("PipedCopier reader failed.", e);
+                    mError = new IOException("Reader failed: " + e.getMessage());
+                }
+            } finally {
+                mFull.offer(END);
+            }
+        }
+    }
+}
@@ -0,0 +1,168 @@
+
+package org.brandroid.openmanager.util;
+
+import java.io.IOException;
+import java.io.InputStream;
+import java.io.InterruptedIOException;
+import java.nio.ByteBuffer;
+import java.nio.channels.FileChannel;
+import java.util.concurrent.CountDownLatch;
+import java.util.concurrent.ExecutorService;
+import java.util.concurrent.Executors;
+import java.util.concurrent.TimeUnit;
+import java.util.concurrent.atomic.AtomicLong;
+
+import org.brandroid.openmanager.data.OpenNetworkPath.ResumableDownload;
+import org.brandroid.utils.Logger;
+
+/**
+ * Downloads one large remote file over several connections at once. The file
+ * is split into contiguous ranges, each range is read from its own stream
+ * and written at its offset through a shared positional channel. On high
+ * latency links this fills the pipe where a single stream is limited by its
+ * request window.
+ */
+public class SegmentedDownloader {
+    public static final long MIN_SEGMENT = 16 * 1024 * 1024;
+    public static final int MAX_SEGMENTS = 4;
+
+    private static final ExecutorService mWorkers = Executors.newCachedThreadPool();
+
+    private final ResumableDownload mSource;
+    private final FileChannel mDest;
+    private final long[] mStarts, mEnds;
+    private final AtomicLong[] mDone;
+    private volatile boolean mAborted = false;
+    private volatile IOException mError = null;
+
+    /**
+     * @param source Remote file to read.
+     * @param size Length of the remote file.
+     * @param dest Channel to write to. It is not closed.
+     */
+    public SegmentedDownloader(ResumableDownload source, long size, FileChannel dest) {
+        mSource = source;
+        mDest = dest;
+        int count = getSegmentCount(size);
+        mStarts = new long[count];
+        mEnds = new long[count];
+        mDone = new AtomicLong[count];
+        long span = size / count;
+        for (int i = 0; i < count; i++) {
+            mStarts[i] = i * span;
+            mEnds[i] = i == count - 1 ? size : (i + 1) * span;
+            mDone[i] = new AtomicLong(0);
+        }
+    }
+
+    public static int getSegmentCount(long size) {
+        return (int)Math.max(1, Math.min(MAX_SEGMENTS, size / MIN_SEGMENT));
+    }
+
+    /**
+     * Returns true if a file of this size would be split into more than one
+     * segment.
+     */
+    public static boolean isWorthwhile(long size) {
+        return getSegmentCount(size) > 1;
+    }
+
+    /**
+     * Returns the number of bytes from the start of the file that have all
+     * been written, which is where a single stream retry can pick up.
+     */
+    public long getContiguous() {
+        long ret = 0;
+        for (int i = 0; i < mStarts.length; i++) {
+            long done = mDone[i].get();
+            ret += done;
+            if (mStarts[i] + done < mEnds[i])
+                break;
+        }
+        return ret;
+    }
+
+    public long getBytesDone() {
+        long ret = 0;
+        for (AtomicLong done : mDone)
+            ret += done.get();
+        return ret;
+    }
+
+    /**
+     * Fetch every segment, blocking until all are written. Progress and
+     * cancellation are checked on the calling thread.
+     *
+     * @throws IOException if any segment fails. The remaining segments are
+     *             stopped, and {@link #getContiguous()} reports what can be
+     *             kept.
+     */
+    public void download(PipedCopier.CopyListener listener) throws IOException {
+        final CountDownLatch latch = new CountDownLatch(mStarts.length);
+        for (int i = 0; i < mStarts.length; i++) {
+            final int index = i;
+            mWorkers.execute(new Runnable() {
+                public void run() {
+                    try {
+                        fetch(index);
+                    } catch (IOException e) {
+                        if (!mAborted) {
+                            mError = e;
+                            mAborted = true;
+                        }
+                    } catch (RuntimeException e) {
+                        Logger.LogError("Segment " + index + " failed.", e);
+                        if (!mAborted) {
+                            mError = new IOException("Segment failed: " + e.getMessage());
+                            mAborted = true;
+                        }
+                    } finally {
+                        latch.countDown();
+                    }
+                }
+            });
+        }
+        try {
+            while (!latch.await(250, TimeUnit.MILLISECONDS)) {
+                if (listener != null) {
+                    listener.onCopyProgress(getBytesDone());
+                    if (listener.isCancelled())
+                        mAborted = true;
+                }
+            }
+        } catch (InterruptedException e) {
+            mAborted = true;
+            throw new InterruptedIOException("Segmented download interrupted");
+        }
+        if (mError != null)
+            throw mError;
+        if (mAborted)
+            throw new InterruptedIOException("Segmented download cancelled");
+        if (listener != null)
+            listener.onCopyProgress(getBytesDone());
+    }
+
+    private void fetch(int index) throws IOException {
+        long pos = mStarts[index];
+        final long end = mEnds[index];
+        byte[] buffer = new byte[FileManager.BUFFER];
+        InputStream in = mSource.getInputStream(pos);
+        try {
+            while (pos < end && !mAborted) {
+                int read = in.read(buffer, 0, (int)Math.min(buffer.length, end - pos));
+                if (read == -1)
+                    throw new IOException("Unexpected end of stream at " + pos);
+                ByteBuffer bb = ByteBuffer.wrap(buffer, 0, read);
+                while (bb.hasRemaining())
+                    pos += mDest.write(bb, pos);
+                mDone[index].set(pos - mStarts[index]);
+            }
+        } finally {
+            try {
+                in.close();
+            } catch (IOException e) {
+                // servers may complain when a ranged read is closed early
+            }
+        }
+    }
+}
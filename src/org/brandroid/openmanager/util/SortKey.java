@@ -0,0 +1,170 @@
+
+package org.brandroid.openmanager.util;
+
+import java.util.Arrays;
+import java.util.Comparator;
+import java.util.List;
+
+import org.brandroid.openmanager.data.OpenPath;
+import org.brandroid.openmanager.util.SortType.Type;
+
+/**
+ * The fields a listing is sorted by, read from a path once. Comparing paths
+ * directly asks both sides for their type, size, date and name on every
+ * comparison, which for n entries is n log n stat calls (or network lookups)
+ * and lowercased strings. Sorting through keys reads each path once and only
+ * reads the fields the current sort needs.
+ */
+public final class SortKey {
+    private final OpenPath mPath;
+    private final boolean mFolder;
+    /** Lowercased name, or null if the path has no name. */
+    private final String mName;
+    private final String mExtension;
+    private final long mSize;
+    /** Modified time, or Long.MIN_VALUE if unknown. */
+    private final long mModified;
+
+    public SortKey(OpenPath path, SortType sort) {
+        mPath = path;
+        Type type = sort.getType();
+        Boolean folder = sort.foldersFirst() ? path.isDirectory() : null;
+        mFolder = folder != null && folder;
+        String name = path.getName();
+        mName = name != null ? name.toLowerCase() : null;
+        mExtension = type == Type.TYPE && mName != null ? mName.substring(mName
+                .lastIndexOf(".") + 1) : null;
+        mSize = type == Type.SIZE || type == Type.SIZE_DESC ? path.length() : 0;
+        Long modified = type == Type.DATE || type == Type.DATE_DESC ? path.lastModified()
+                : null;
+        mModified = modified != null ? modified : Long.MIN_VALUE;
+    }
+
+    public OpenPath getPath() {
+        return mPath;
+    }
+
+    /**
+     * Returns a comparator for keys built with the given sort. The sort is
+     * read once, so later changes to it do not affect the comparator.
+     */
+    public static Comparator<SortKey> getComparator(SortType sort) {
+        final Type type = sort.getType();
+        final boolean foldersFirst = sort.foldersFirst();
+        return new Comparator<SortKey>() {
+            public int compare(SortKey a, SortKey b) {
+                if (foldersFirst && a.mFolder != b.mFolder)
+                    return a.mFolder ? -1 : 1;
+                if (a.mName == null || b.mName == null)
+                    return a.mName == null ? (b.mName == null ? 0 : 1) : -1;
+                switch (type) {
+                    case ALPHA_DESC:
+                        return b.mName.compareTo(a.mName);
+                    case SIZE_DESC:
+                        return compareLongs(a.mSize, b.mSize);
+                    case SIZE:
+                        return compareLongs(b.mSize, a.mSize);
+                    case DATE_DESC:
+                        // unknown dates go last in both directions
+                        if (a.mModified == Long.MIN_VALUE || b.mModified == Long.MIN_VALUE)
+                            return compareLongs(b.mModified, a.mModified);
+                        return compareLongs(a.mModified, b.mModified);
+                    case DATE:
+                        return compareLongs(b.mModified, a.mModified);
+                    case TYPE:
+                        return a.mExtension.compareTo(b.mExtension);
+                    case NONE:
+                        return 0;
+                    default:
+                        return a.mName.compareTo(b.mName);
+                }
+            }
+        };
+    }
+
+    private static int compareLongs(long a, long b) {
+        return a < b ? -1 : (a == b ? 0 : 1);
+    }
+
+    /**
+     * Compare two paths in the order of {@link #getComparator(SortType)},
+     * reading only the fields the sort needs and building no keys. Meant for
+     * single comparisons; sorts should use keys, which read each path once.
+     */
+    public static int compare(OpenPath a, OpenPath b, SortType sort) {
+        Type type = sort.getType();
+        if (sort.foldersFirst()) {
+            boolean fa = Boolean.TRUE.equals(a.isDirectory());
+            boolean fb = Boolean.TRUE.equals(b.isDirectory());
+            if (fa != fb)
+                return fa ? -1 : 1;
+        }
+        String na = a.getName(), nb = b.getName();
+        if (na == null || nb == null)
+            return na == null ? (nb == null ? 0 : 1) : -1;
+        switch (type) {
+            case ALPHA_DESC:
+                return nb.toLowerCase().compareTo(na.toLowerCase());
+            case SIZE_DESC:
+                return compareLongs(a.length(), b.length());
+            case SIZE:
+                return compareLongs(b.length(), a.length());
+            case DATE_DESC:
+            case DATE:
+                Long la = a.lastModified(), lb = b.lastModified();
+                long ma = la != null ? la : Long.MIN_VALUE;
+                long mb = lb != null ? lb : Long.MIN_VALUE;
+                if (type == Type.DATE || ma == Long.MIN_VALUE || mb == Long.MIN_VALUE)
+                    return compareLongs(mb, ma);
+                return compareLongs(ma, mb);
+            case TYPE:
+                na = na.toLowerCase();
+                nb = nb.toLowerCase();
+                return na.substring(na.lastIndexOf(".") + 1).compareTo(
+                        nb.substring(nb.lastIndexOf(".") + 1));
+            case NONE:
+                return 0;
+            default:
+                return na.toLowerCase().compareTo(nb.toLowerCase());
+        }
+    }
+
+    /**
+     * Sort paths in place. The sort is stable, and nulls go last.
+     */
+    public static void sort(OpenPath[] paths, SortType sort) {
+        SortKey[] keys = getKeys(paths, sort);
+        for (int i = 0; i < paths.length; i++)
+            paths[i] = i < keys.length ? keys[i].mPath : null;
+    }
+
+    /**
+     * Sort a list of paths in place. The sort is stable, and nulls go last.
+     */
+    public static void sort(List<OpenPath> paths, SortType sort) {
+        if (paths.size() < 2)
+            return;
+        SortKey[] keys = getKeys(paths.toArray(new OpenPath[paths.size()]), sort);
+        for (int i = 0; i < paths.size(); i++)
+            paths.set(i, i < keys.length ? keys[i].mPath : null);
+    }
+
+    /**
+     * Returns sorted keys for the paths that are not null.
+     */
+    private static SortKey[] getKeys(OpenPath[] paths, SortType sort) {
+        SortKey[] keys = new SortKey[paths.length];
+        int n = 0;
+        for (OpenPath path : paths)
+            if (path != null)
+                keys[n++] = new SortKey(path, sort);
+        if (n < keys.length) {
+            SortKey[] tmp = new SortKey[n];
+            System.arraycopy(keys, 0, tmp, 0, n);
+            keys = tmp;
+        }
+        if (sort.getType() != Type.NONE || sort.foldersFirst())
+            Arrays.sort(keys, getComparator(sort));
+        return keys;
+    }
+}
@@ -18,8 +18,10 @@
 
 package org.brandroid.openmanager.util;
 
+import java.io.BufferedInputStream;
+import java.io.ByteArrayOutputStream;
 import java.io.File;
-import java.io.FileOutputStream;
+import java.io.FilterInputStream;
 import java.io.IOException;
 import java.io.InputStream;
 import java.lang.ref.SoftReference;
@@ -40,6 +42,7 @@ import org.brandroid.openmanager.data.OpenFTP;
 import org.brandroid.openmanager.data.OpenFile;
 import org.brandroid.openmanager.data.OpenMediaStore;
 import org.brandroid.openmanager.data.OpenNetworkPath;
+import org.brandroid.openmanager.data.OpenNetworkPath.ResumableDownload;
 import org.brandroid.openmanager.data.OpenPath;
 import org.brandroid.openmanager.data.OpenSFTP;
 import org.brandroid.openmanager.data.OpenSMB;
@@ -86,6 +89,10 @@ public class ThumbnailCreator {
     private boolean mStop = false;
     private static int iVideoThumbErrors = 0;
 
+    /** Remote images larger than this only get a thumbnail from their EXIF header. */
+    public static final long MAX_REMOTE_DECODE = 16 * 1024 * 1024;
+    private static final int REMOTE_MARK = 256 * 1024;
+
     public static boolean useCache = true;
     public static boolean showThumbPreviews = true;
     public static boolean showCenteredCroppedPreviews = false;
@@ -137,6 +144,17 @@ public class ThumbnailCreator {
     public static boolean setThumbnail(final OpenApp app, final ImageView mImage,
             final OpenPath file, final int mWidth, final int mHeight,
             final OnUpdateImageListener mListener) {
+        return setThumbnail(app, mImage, file, mWidth, mHeight, null, 0, mListener);
+    }
+
+    /**
+     * @param group Passed to {@link ThumbnailScheduler}, so pending thumbnails
+     *            can be cancelled together when the list changes.
+     * @param position The position of mImage in its list.
+     */
+    public static boolean setThumbnail(final OpenApp app, final ImageView mImage,
+            final OpenPath file, final int mWidth, final int mHeight, Object group,
+            int position, final OnUpdateImageListener mListener) {
         // if(mImage instanceof RemoteImageView)
         // {
         // return setThumbnail((RemoteImageView)mImage, file, mWidth, mHeight);
@@ -152,6 +170,8 @@ public class ThumbnailCreator {
 
         final Context mContext = mImage.getContext().getApplicationContext();
 
+        ThumbnailScheduler.get().cancel(mImage);
+
         if (!file.isDirectory() && file.isTextFile())
             postImageFromPath(mImage, file, useLarge);
         else if (mImage.getTag() == null)
@@ -161,7 +181,7 @@ public class ThumbnailCreator {
             if (showThumbPreviews) {
                 Bitmap thumb = // !mCacheMap.containsKey(file.getPath()) ? null
                 // :
-                getThumbnailCache(app, file.getThumbnailCacheFilename(mWidth), mWidth, mHeight);
+                getThumbnailCache(app, file, mWidth, mHeight);
 
                 if (thumb == null) {
                     mImage.setImageResource(getDefaultResourceId(file, mWidth, mHeight));
@@ -191,8 +211,8 @@ public class ThumbnailCreator {
                                                     if(!(d instanceof BitmapDrawable)) return;
                                                     final Bitmap bmp = ((BitmapDrawable)d).getBitmap();
                                                     String mCacheFilename = file.getThumbnailCacheFilename(mWidth);
-                                                    saveThumbnail(app.getContext(),
-                                                            mCacheFilename, bmp);
+                                                    saveThumbnail(app.getContext(), file,
+                                                            mWidth, bmp);
                                                     app.getMemoryCache().put(mCacheFilename,
                                                             bmp);
                                                     OpenExplorer.post(new Runnable() {
@@ -207,27 +227,12 @@ public class ThumbnailCreator {
                                         });
                                 return true;
                             }
-                            new Thread(new Runnable() {
-                                @Override
-                                public void run() {
-                                    try {
-                                        SoftReference<Bitmap> gen = generateThumb(app, file,
-                                                mWidth, mHeight, mContext);
-                                        if (gen != null && gen.get() != null)
-                                            mListener.updateImage(gen.get());
-                                        else
-                                            Logger.LogWarning("Couldn't generate thumb for "
-                                                    + file.getPath());
-                                    } catch (OutOfMemoryError e) {
-                                        showThumbPreviews = false;
-                                        Logger.LogWarning("No more memory for thumbs!");
-                                    }
-                                }
-                            }).start();
+                            ThumbnailScheduler.get().request(app, mImage, group, file, mWidth,
+                                    mHeight, position, mListener);
                         } else
                             // new Thread(new Runnable() {public void run()
                             // {
-                            mListener.updateImage(getThumbnailCache(app, file.getPath(),
+                            mListener.updateImage(getThumbnailCache(app, file,
                                     mWidth, mHeight));
                         // }}).start();
 
@@ -290,8 +295,7 @@ public class ThumbnailCreator {
         if (file.hasThumbnail()) {
             if (showThumbPreviews && !file.requiresThread()) {
 
-                Bitmap thumb = ThumbnailCreator.getThumbnailCache(app, file.getThumbnailCacheFilename(mWidth), mWidth,
-                        mHeight);
+                Bitmap thumb = ThumbnailCreator.getThumbnailCache(app, file, mWidth, mHeight);
 
                 if (thumb == null) {
                     mImage.setImageDrawable(mContext.getResources().getDrawable(
@@ -517,20 +521,28 @@ public class ThumbnailCreator {
         return app.getMemoryCache().containsKey(file.getThumbnailCacheFilename(w));
     }
 
+    /**
+     * Returns the thumbnail from memory, or from the {@link ThumbnailStore}.
+     */
     public static Bitmap getThumbnailCache(OpenApp app, OpenPath file, int w, int h) {
-        return getThumbnailCache(app, file.getThumbnailCacheFilename(w), w, h);
-    }
-
-    public static Bitmap getThumbnailCache(OpenApp app, String cacheName, int w, int h) {
+        String cacheName = file.getThumbnailCacheFilename(w);
         if (!app.getMemoryCache().containsKey(cacheName)) {
-            File f = app.getContext().getFileStreamPath(cacheName);
-            if (f.exists()) {
-                if (f.length() > 0)
-                    app.getMemoryCache().put(cacheName, BitmapFactory.decodeFile(f.getPath()));
+            byte[] data = ThumbnailStore.lookup(app.getContext(), file, w);
+            if (data != null) {
+                if (data.length > 0)
+                    app.getMemoryCache().put(cacheName,
+                            BitmapFactory.decodeByteArray(data, 0, data.length));
                 else
                     fails.put(cacheName, 1);
             }
         }
+        return getThumbnailCache(app, cacheName, w, h);
+    }
+
+    /**
+     * Returns the thumbnail if it is in memory.
+     */
+    public static Bitmap getThumbnailCache(OpenApp app, String cacheName, int w, int h) {
         if (app.getMemoryCache().containsKey(cacheName))
             return app.getMemoryCache().get(cacheName);
         return null;
@@ -561,6 +573,7 @@ public class ThumbnailCreator {
         // readCache = writeCache = true;
 
         final String mCacheFilename = file.getThumbnailCacheFilename(mWidth);
+        final int mCacheWidth = mWidth;
 
         Boolean useGeneric = false;
         String mParent = file.getParent() != null ? file.getParent().getName() : null;
@@ -580,12 +593,12 @@ public class ThumbnailCreator {
 
             bmp = BitmapFactory.decodeResource(mContext.getResources(),
                     getDefaultResourceId(file, mWidth, mHeight));
-            if (file.requiresThread() || useGeneric)
+            if ((file.requiresThread() && !canThumbRemote(file)) || useGeneric)
                 return new SoftReference<Bitmap>(bmp);
         }
 
         if (file.hasThumbnail()
-                && (bmp = getThumbnailCache(app, mCacheFilename, mWidth, mHeight)) != null)
+                && (bmp = getThumbnailCache(app, file, mWidth, mHeight)) != null)
             return new SoftReference<Bitmap>(bmp);
 
         // we already loaded this thumbnail, just return it.
@@ -598,6 +611,8 @@ public class ThumbnailCreator {
         mWidth *= density;
         mHeight *= density;
 
+        // true once bmp is a bitmap only this method refers to
+        boolean decoded = false;
         if (bmp == null && !useGeneric && !OpenExplorer.LOW_MEMORY) {
             Boolean valid = false;
             if ((file instanceof OpenMediaStore || file instanceof OpenCursor)
@@ -684,7 +699,7 @@ public class ThumbnailCreator {
                         bmp = BitmapFactory.decodeResource(mContext.getResources(),
                                 useLarge ? R.drawable.lg_apk : R.drawable.sm_apk);
                     else
-                        saveThumbnail(mContext, mCacheFilename, bmp);
+                        saveThumbnail(mContext, file, mCacheWidth, bmp);
                 } catch (IOException ix) {
                     Logger.LogWarning("Invalid APK: " + file.getPath());
                 } finally {
@@ -708,14 +723,29 @@ public class ThumbnailCreator {
                 // mHeight *= 2; mWidth *= 2;
                 // long len_kb = file.length() / 1024;
 
-                BitmapFactory.Options options = new BitmapFactory.Options();
-                options.inJustDecodeBounds = true;
-                BitmapFactory.decodeFile(file.getPath(), options);
-                options.inSampleSize = Math.min(options.outWidth / mWidth,
-                        options.outHeight / mHeight);
-                options.inJustDecodeBounds = false;
-                options.inPurgeable = true;
-                bmp = BitmapFactory.decodeFile(file.getPath(), options);
+                if (ExifThumbnail.isJpeg(file.getName()))
+                    bmp = decodeIfLargeEnough(ExifThumbnail.read(new File(file.getPath())),
+                            mWidth, mHeight);
+                if (bmp == null) {
+                    BitmapFactory.Options options = new BitmapFactory.Options();
+                    options.inJustDecodeBounds = true;
+                    BitmapFactory.decodeFile(file.getPath(), options);
+                    options.inSampleSize = Math.min(options.outWidth / mWidth,
+                            options.outHeight / mHeight);
+                    options.inJustDecodeBounds = false;
+                    options.inPurgeable = true;
+                    bmp = BitmapPool.get().decodeFile(file.getPath(), options);
+                }
+                decoded = true;
+            } else if (!valid && canThumbRemote(file) && !useGeneric) {
+                try {
+                    bmp = decodeRemote(file, mWidth, mHeight);
+                } catch (IOException e) {
+                    // don't remember the failure, the server may be back later
+                    Logger.LogWarning("Unable to read remote thumbnail for " + file, e);
+                    return new SoftReference<Bitmap>(null);
+                }
+                decoded = true;
             } else if (bmp == null && file.getClass().equals(OpenFile.class)) {
                 useGeneric = true;
                 if (file.isDirectory())
@@ -728,6 +758,7 @@ public class ThumbnailCreator {
         }
 
         if (bmp != null && (mWidth < bmp.getWidth() || mHeight < bmp.getHeight())) {
+            Bitmap src = bmp;
             if (file.isImageFile() && showCenteredCroppedPreviews)
                 bmp = cropBitmap(bmp, mWidth, mHeight);
             else {
@@ -740,14 +771,16 @@ public class ThumbnailCreator {
                     mHeight *= (float)bh / (float)bw;
                 bmp = Bitmap.createScaledBitmap(bmp, mWidth, mHeight, true);
             }
+            if (decoded && bmp != src)
+                BitmapPool.get().put(src);
         }
 
         if (bmp != null) {
             if (writeCache && !useGeneric)
-                saveThumbnail(app.getContext(), mCacheFilename, bmp);
+                saveThumbnail(app.getContext(), file, mCacheWidth, bmp);
             app.getMemoryCache().put(mCacheFilename, bmp);
         } else {
-            saveThumbnail(app.getContext(), mCacheFilename, null);
+            saveThumbnail(app.getContext(), file, mCacheWidth, null);
             fails.put(mParent, fails.containsKey(mParent) ? fails.get(mParent) + 1 : 1);
             rememberFailure(file.getPath());
         }
@@ -756,6 +789,105 @@ public class ThumbnailCreator {
         return new SoftReference<Bitmap>(bmp);
     }
 
+    /**
+     * Returns true for remote images that can be read from a stream. They are
+     * never read on the UI thread.
+     */
+    public static boolean canThumbRemote(OpenPath file) {
+        return file instanceof ResumableDownload && file.isImageFile()
+                && !Thread.currentThread().equals(OpenExplorer.UiThread);
+    }
+
+    /**
+     * Make a thumbnail of a remote image, reading as little of it as
+     * possible: the EXIF thumbnail if it is large enough, otherwise a
+     * subsampled decode straight from the stream. Nothing is written to disk.
+     */
+    private static Bitmap decodeRemote(OpenPath file, int w, int h) throws IOException {
+        ResumableDownload remote = (ResumableDownload)file;
+        InputStream in = openRemote(remote);
+        try {
+            if (ExifThumbnail.isJpeg(file.getName())) {
+                Bitmap bmp = decodeIfLargeEnough(ExifThumbnail.read(in), w, h);
+                if (bmp != null)
+                    return bmp;
+            }
+            if (file.length() > MAX_REMOTE_DECODE)
+                return null;
+            in = rewindRemote(in, remote);
+            BitmapFactory.Options opts = new BitmapFactory.Options();
+            opts.inJustDecodeBounds = true;
+            BitmapFactory.decodeStream(unmarkable(in), null, opts);
+            if (opts.outWidth <= 0 || opts.outHeight <= 0)
+                return null;
+            opts.inSampleSize = Math.max(1, Math.min(opts.outWidth / w, opts.outHeight / h));
+            opts.inJustDecodeBounds = false;
+            in = rewindRemote(in, remote);
+            return BitmapFactory.decodeStream(unmarkable(in), null, opts);
+        } finally {
+            try {
+                in.close();
+            } catch (IOException e) {
+            }
+        }
+    }
+
+    private static InputStream openRemote(ResumableDownload remote) throws IOException {
+        InputStream in = new BufferedInputStream(remote.getInputStream(0), 16 * 1024);
+        in.mark(REMOTE_MARK);
+        return in;
+    }
+
+    /**
+     * Go back to the start of a remote image. The headers are usually still
+     * buffered; if not, the image is opened again.
+     */
+    private static InputStream rewindRemote(InputStream in, ResumableDownload remote)
+            throws IOException {
+        try {
+            in.reset();
+            in.mark(REMOTE_MARK);
+            return in;
+        } catch (IOException e) {
+            in.close();
+            return openRemote(remote);
+        }
+    }
+
+    /**
+     * BitmapFactory marks streams that support it, which would replace the
+     * mark rewindRemote needs.
+     */
+    private static InputStream unmarkable(InputStream in) {
+        return new FilterInputStream(in) {
+            @Override
+            public boolean markSupported() {
+                return false;
+            }
+
+            @Override
+            public void close() {
+            }
+        };
+    }
+
+    /**
+     * Decode an embedded EXIF thumbnail, if it is at least as large as the
+     * thumbnail wanted, so it won't look blurry once scaled.
+     */
+    private static Bitmap decodeIfLargeEnough(byte[] data, int w, int h) {
+        if (data == null)
+            return null;
+        BitmapFactory.Options opts = new BitmapFactory.Options();
+        opts.inJustDecodeBounds = true;
+        BitmapFactory.decodeByteArray(data, 0, data.length, opts);
+        int size = showCenteredCroppedPreviews ? Math.min(opts.outWidth, opts.outHeight)
+                : Math.max(opts.outWidth, opts.outHeight);
+        if (size <= 0 || size < Math.max(w, h))
+            return null;
+        return BitmapFactory.decodeByteArray(data, 0, data.length);
+    }
+
     private static void rememberFailure(String path) {
         fails.put(path, 1);
     }
@@ -802,22 +934,15 @@ public class ThumbnailCreator {
         return null;
     }
 
-    private static void saveThumbnail(Context mContext, String file, Bitmap bmp) {
+    private static void saveThumbnail(Context mContext, OpenPath file, int w, Bitmap bmp) {
         // Logger.LogVerbose("Saving thumb for " + file);
-        FileOutputStream os = null;
-        try {
-            os = mContext.openFileOutput(file, 0);
-            if (bmp != null)
-                bmp.compress(CompressFormat.JPEG, 98, os);
-        } catch (IOException e) {
-            Logger.LogError("Unable to save thumbnail for " + file, e);
-        } finally {
-            if (os != null)
-                try {
-                    os.close();
-                } catch (IOException e) {
-                }
+        byte[] data = null;
+        if (bmp != null) {
+            ByteArrayOutputStream os = new ByteArrayOutputStream();
+            bmp.compress(CompressFormat.JPEG, 90, os);
+            data = os.toByteArray();
         }
+        ThumbnailStore.put(mContext, file, w, data);
     }
 
     private void sendThumbBack(OpenApp app, SoftReference<Bitmap> mThumb, String path) {
@@ -840,8 +965,11 @@ public class ThumbnailCreator {
         // Logger.LogInfo("Flushing" + mCacheMap.size() + " from memory & " +
         // mContext.fileList().length + " from disk.");
         app.getMemoryCache().clear();
+        Logger.LogDebug("Flushing bitmap pool: " + BitmapPool.get());
+        BitmapPool.get().clear();
         if (!deleteFiles)
             return;
+        ThumbnailStore.clear(app.getContext());
         for (String s : app.getContext().fileList())
             if (!s.toLowerCase().endsWith(".json"))
                 app.getContext().deleteFile(s);
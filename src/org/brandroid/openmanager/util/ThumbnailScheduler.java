@@ -0,0 +1,280 @@
+
+package org.brandroid.openmanager.util;
+
+import java.lang.ref.SoftReference;
+import java.util.ArrayList;
+import java.util.Collection;
+import java.util.HashMap;
+import java.util.Iterator;
+import java.util.Map;
+import java.util.concurrent.PriorityBlockingQueue;
+import java.util.concurrent.ThreadFactory;
+import java.util.concurrent.ThreadPoolExecutor;
+import java.util.concurrent.TimeUnit;
+
+import org.brandroid.openmanager.data.OpenNetworkPath;
+import org.brandroid.openmanager.data.OpenPath;
+import org.brandroid.openmanager.interfaces.OpenApp;
+import org.brandroid.openmanager.util.ThumbnailCreator.OnUpdateImageListener;
+import org.brandroid.utils.Logger;
+
+import android.annotation.SuppressLint;
+import android.graphics.Bitmap;
+import android.os.Build;
+import android.os.Process;
+
+/**
+ * Generates thumbnails on a small pool of background threads. Requests made
+ * most recently run first, so while scrolling the rows now on screen are
+ * served before the ones that scrolled past, and requests made together
+ * (one layout pass) run top to bottom. Requests for the same thumbnail are
+ * merged. Each request is made for a target, usually the ImageView it will
+ * be shown in; a new request for the same target, {@link #cancel(Object)}
+ * or {@link #cancelGroup(Object)} drops the old one, and it is taken off
+ * the queue once nobody is waiting for it.
+ * <p>
+ * Remote files run on a pool of their own for each server, so a slow server
+ * neither holds up local thumbnails nor gets more than {@link #HOST_THREADS}
+ * connections at once.
+ */
+public class ThumbnailScheduler {
+    private static final int THREADS = 2;
+    private static final int HOST_THREADS = 2;
+    /** Requests within this many ms of each other are ordered by position. */
+    private static final long BUCKET = 100;
+
+    private static final ThumbnailScheduler mInstance = new ThumbnailScheduler();
+
+    private final ThreadPoolExecutor mWorkers = newPool(THREADS, "ThumbnailScheduler");
+    /** Workers for remote files, by host. */
+    private final HashMap<String, ThreadPoolExecutor> mHosts =
+            new HashMap<String, ThreadPoolExecutor>();
+    /** Queued and running requests, by thumbnail cache name. */
+    private final HashMap<String, Request> mRequests = new HashMap<String, Request>();
+    private final HashMap<Object, Request> mTargets = new HashMap<Object, Request>();
+    private int mMerged = 0;
+    private int mCancelled = 0;
+    private int mDone = 0;
+
+    public static ThumbnailScheduler get() {
+        return mInstance;
+    }
+
+    @SuppressLint("NewApi")
+    private static ThreadPoolExecutor newPool(int threads, final String name) {
+        ThreadPoolExecutor ret = new ThreadPoolExecutor(threads, threads, 30, TimeUnit.SECONDS,
+                new PriorityBlockingQueue<Runnable>(), new ThreadFactory() {
+                    public Thread newThread(final Runnable r) {
+                        Thread t = new Thread(new Runnable() {
+                            public void run() {
+                                Process.setThreadPriority(Process.THREAD_PRIORITY_BACKGROUND);
+                                r.run();
+                            }
+                        }, name);
+                        t.setDaemon(true);
+                        return t;
+                    }
+                });
+        // let idle pools give up their threads
+        if (Build.VERSION.SDK_INT > 8)
+            ret.allowCoreThreadTimeOut(true);
+        return ret;
+    }
+
+    /**
+     * Returns the pool a file's thumbnail is made on.
+     */
+    private ThreadPoolExecutor getWorkers(OpenPath file) {
+        if (!(file instanceof OpenNetworkPath) || file.getUri() == null)
+            return mWorkers;
+        String host = file.getUri().getHost() + ":" + file.getUri().getPort();
+        ThreadPoolExecutor pool = mHosts.get(host);
+        if (pool == null) {
+            pruneHosts();
+            pool = newPool(HOST_THREADS, "ThumbnailScheduler " + host);
+            mHosts.put(host, pool);
+        }
+        return pool;
+    }
+
+    /**
+     * Shut down the pools of servers with nothing queued or running, so
+     * browsing many servers doesn't leave a pool behind for each.
+     */
+    private void pruneHosts() {
+        Iterator<ThreadPoolExecutor> it = mHosts.values().iterator();
+        while (it.hasNext()) {
+            ThreadPoolExecutor pool = it.next();
+            if (pool.getActiveCount() == 0 && pool.getQueue().isEmpty()) {
+                pool.shutdown();
+                it.remove();
+            }
+        }
+    }
+
+    private static class Listener {
+        final Object group;
+        final OnUpdateImageListener listener;
+
+        Listener(Object group, OnUpdateImageListener listener) {
+            this.group = group;
+            this.listener = listener;
+        }
+    }
+
+    private class Request implements Runnable, Comparable<Request> {
+        final OpenApp app;
+        final OpenPath file;
+        final int width, height;
+        final String key;
+        final ThreadPoolExecutor workers;
+        final HashMap<Object, Listener> listeners = new HashMap<Object, Listener>();
+        long bucket;
+        int position;
+        boolean started = false;
+
+        Request(OpenApp app, OpenPath file, int width, int height, String key,
+                ThreadPoolExecutor workers) {
+            this.app = app;
+            this.file = file;
+            this.width = width;
+            this.height = height;
+            this.key = key;
+            this.workers = workers;
+        }
+
+        public int compareTo(Request other) {
+            if (bucket != other.bucket)
+                return bucket > other.bucket ? -1 : 1;
+            return position < other.position ? -1 : (position == other.position ? 0 : 1);
+        }
+
+        public void run() {
+            synchronized (ThumbnailScheduler.this) {
+                if (started || mRequests.get(key) != this)
+                    return;
+                started = true;
+            }
+            Bitmap bmp = null;
+            ArrayList<OnUpdateImageListener> waiting = new ArrayList<OnUpdateImageListener>();
+            try {
+                SoftReference<Bitmap> gen = ThumbnailCreator.generateThumb(app, file, width,
+                        height, app.getContext());
+                bmp = gen != null ? gen.get() : null;
+            } catch (OutOfMemoryError e) {
+                ThumbnailCreator.showThumbPreviews = false;
+                Logger.LogWarning("No more memory for thumbs!");
+            } catch (Exception e) {
+                Logger.LogError("Unable to generate thumb for " + file, e);
+            } finally {
+                // always forget the request, or later ones would merge into it
+                synchronized (ThumbnailScheduler.this) {
+                    mRequests.remove(key);
+                    mDone++;
+                    for (Map.Entry<Object, Listener> e : listeners.entrySet()) {
+                        if (mTargets.get(e.getKey()) == this)
+                            mTargets.remove(e.getKey());
+                        waiting.add(e.getValue().listener);
+                    }
+                    listeners.clear();
+                }
+            }
+            if (bmp == null) {
+                Logger.LogWarning("Couldn't generate thumb for " + file.getPath());
+                return;
+            }
+            for (OnUpdateImageListener l : waiting)
+                l.updateImage(bmp);
+        }
+    }
+
+    /**
+     * Generate a thumbnail and pass it to listener, unless the request is
+     * cancelled first.
+     *
+     * @param target What the thumbnail is for. A later request for the same
+     *            target replaces this one.
+     * @param group Requests made for the same group can be cancelled together
+     *            with {@link #cancelGroup(Object)}, usually when a list
+     *            shows another folder.
+     * @param position The position of the target in its list. Requests made
+     *            at the same time run in order of position.
+     */
+    public synchronized void request(OpenApp app, Object target, Object group, OpenPath file,
+            int width, int height, int position, OnUpdateImageListener listener) {
+        String key = file.getThumbnailCacheFilename(width);
+        detach(target);
+        Request r = mRequests.get(key);
+        if (r == null) {
+            r = new Request(app, file, width, height, key, getWorkers(file));
+            mRequests.put(key, r);
+        } else {
+            mMerged++;
+            if (!r.started)
+                r.workers.remove(r);
+        }
+        r.listeners.put(target, new Listener(group, listener));
+        mTargets.put(target, r);
+        if (!r.started) {
+            r.bucket = System.currentTimeMillis() / BUCKET;
+            r.position = position;
+            r.workers.execute(r);
+        }
+    }
+
+    private void detach(Object target) {
+        Request r = mTargets.remove(target);
+        if (r == null)
+            return;
+        r.listeners.remove(target);
+        if (r.listeners.isEmpty() && !r.started) {
+            r.workers.remove(r);
+            mRequests.remove(r.key);
+            mCancelled++;
+        }
+    }
+
+    /**
+     * Drop the request for a target, such as a row that has been recycled.
+     */
+    public synchronized void cancel(Object target) {
+        detach(target);
+    }
+
+    /**
+     * Drop every request made for a group.
+     */
+    public synchronized void cancelGroup(Object group) {
+        ArrayList<Object> targets = new ArrayList<Object>();
+        Iterator<Map.Entry<Object, Request>> it = mTargets.entrySet().iterator();
+        while (it.hasNext()) {
+            Map.Entry<Object, Request> e = it.next();
+            Listener l = e.getValue().listeners.get(e.getKey());
+            if (l != null && l.group == group)
+                targets.add(e.getKey());
+        }
+        for (Object target : targets)
+            detach(target);
+    }
+
+    /**
+     * Drop the requests made for a group for some of its files, such as
+     * entries that were just deleted, by path.
+     */
+    public synchronized void cancelFiles(Object group, Collection<String> paths) {
+        ArrayList<Object> targets = new ArrayList<Object>();
+        for (Map.Entry<Object, Request> e : mTargets.entrySet()) {
+            Listener l = e.getValue().listeners.get(e.getKey());
+            if (l != null && l.group == group && paths.contains(e.getValue().file.getPath()))
+                targets.add(e.getKey());
+        }
+        for (Object target : targets)
+            detach(target);
+    }
+
+    @Override
+    public synchronized String toString() {
+        return mRequests.size() + " pending on " + (mHosts.size() + 1) + " pools, " + mDone + " done, " + mMerged + " merged, "
+                + mCancelled + " cancelled";
+    }
+}
@@ -0,0 +1,146 @@
+
+package org.brandroid.openmanager.util;
+
+import java.io.File;
+import java.io.IOException;
+
+import org.brandroid.openmanager.data.OpenPath;
+import org.brandroid.utils.Logger;
+import org.brandroid.utils.Utils;
+
+import android.content.Context;
+
+import com.android.gallery3d.common.BlobCache;
+
+/**
+ * Thumbnails on disk, kept in a single {@link BlobCache} instead of one file
+ * each. Entries are keyed by a 64-bit hash of the path, size, modified time
+ * and width, so a changed file misses instead of showing a stale thumbnail.
+ * Each entry starts with the full key, so a hash collision reads as a miss,
+ * and BlobCache checksums each blob. Once the cache is full, the oldest
+ * region is overwritten.
+ * <p>
+ * An entry with no image data records that a thumbnail could not be made.
+ */
+public class ThumbnailStore {
+    private static final String FILE = "thumbs";
+    /** Entries per region. BlobCache keeps two regions. */
+    private static final int MAX_ENTRIES = 4096;
+    /** Bytes per region. */
+    private static final int MAX_BYTES = 16 * 1024 * 1024;
+    private static final int VERSION = 1;
+
+    private static BlobCache mCache = null;
+    private static boolean mOpenFailed = false;
+
+    private static synchronized BlobCache getCache(Context context) {
+        if (mCache != null || mOpenFailed || context == null)
+            return mCache;
+        String path = new File(context.getCacheDir(), FILE).getPath();
+        boolean created = !new File(path + ".idx").exists();
+        try {
+            mCache = new BlobCache(path, MAX_ENTRIES, MAX_BYTES, false, VERSION);
+        } catch (IOException e) {
+            Logger.LogError("Unable to open thumbnail store.", e);
+            mOpenFailed = true;
+            return null;
+        }
+        if (created)
+            deleteLegacyFiles(context.getApplicationContext());
+        return mCache;
+    }
+
+    /**
+     * Thumbnails used to be saved one file each in the files directory,
+     * named by {@link ThumbnailCreator#getCacheFilename(String, int, int)}.
+     */
+    private static void deleteLegacyFiles(final Context context) {
+        new Thread(new Runnable() {
+            public void run() {
+                int deleted = 0;
+                for (String s : context.fileList())
+                    if (s.matches("\\d+_[A-Za-z0-9-]+") && context.deleteFile(s))
+                        deleted++;
+                if (deleted > 0)
+                    Logger.LogInfo("ThumbnailStore: Deleted " + deleted + " old thumbnail files");
+            }
+        }).start();
+    }
+
+    private static byte[] makeKey(OpenPath file, int width) {
+        return Utils.getBytes(file.getThumbnailCacheFilename(width) + "+" + file.length() + "+"
+                + file.lastModified());
+    }
+
+    /**
+     * Returns the stored JPEG data, an empty array if the thumbnail could not
+     * be made last time, or null if nothing is stored.
+     */
+    public static byte[] lookup(Context context, OpenPath file, int width) {
+        BlobCache cache = getCache(context);
+        if (cache == null)
+            return null;
+        byte[] key = makeKey(file, width);
+        byte[] value;
+        try {
+            synchronized (cache) {
+                value = cache.lookup(Utils.crc64Long(key));
+            }
+        } catch (IOException e) {
+            Logger.LogWarning("Unable to read thumbnail for " + file, e);
+            return null;
+        }
+        if (value == null || !isSameKey(key, value))
+            return null;
+        byte[] ret = new byte[value.length - key.length];
+        System.arraycopy(value, key.length, ret, 0, ret.length);
+        return ret;
+    }
+
+    /**
+     * Store a thumbnail's JPEG data. Pass null to record that none could be
+     * made.
+     */
+    public static void put(Context context, OpenPath file, int width, byte[] data) {
+        BlobCache cache = getCache(context);
+        if (cache == null)
+            return;
+        byte[] key = makeKey(file, width);
+        int len = data != null ? data.length : 0;
+        byte[] value = new byte[key.length + len];
+        System.arraycopy(key, 0, value, 0, key.length);
+        if (len > 0)
+            System.arraycopy(data, 0, value, key.length, len);
+        try {
+            synchronized (cache) {
+                cache.insert(Utils.crc64Long(key), value);
+            }
+        } catch (IOException e) {
+            Logger.LogWarning("Unable to save thumbnail for " + file, e);
+        }
+    }
+
+    private static boolean isSameKey(byte[] key, byte[] value) {
+        if (value.length < key.length)
+            return false;
+        for (int i = 0; i < key.length; i++)
+            if (key[i] != value[i])
+                return false;
+        return true;
+    }
+
+    /**
+     * Delete every stored thumbnail.
+     */
+    public static synchronized void clear(Context context) {
+        if (mCache != null) {
+            synchronized (mCache) {
+                mCache.close();
+            }
+            mCache = null;
+        }
+        mOpenFailed = false;
+        if (context != null)
+            BlobCache.deleteFiles(new File(context.getCacheDir(), FILE).getPath());
+    }
+}
@@ -0,0 +1,99 @@
+
+package org.brandroid.openmanager.util;
+
+import org.brandroid.openmanager.data.OpenPath;
+import org.brandroid.utils.Logger;
+import org.brandroid.utils.Preferences;
+import org.brandroid.utils.Utils;
+import org.json.JSONException;
+import org.json.JSONObject;
+
+import android.content.Context;
+import android.content.SharedPreferences;
+
+/**
+ * Remembers how far each network download has safely reached. An offset is
+ * only recorded after the bytes before it have been synced to disk, so a
+ * retry (or a paste after the app was killed) can continue from there
+ * instead of from zero. Entries are dropped once the download completes or
+ * when the remote file no longer matches the one that was being fetched.
+ */
+public class TransferJournal {
+    private static final String PREFS_FILE = "transfer_journal";
+    private static TransferJournal mInstance = null;
+
+    private final SharedPreferences mPrefs;
+
+    private TransferJournal(Context context) {
+        mPrefs = Preferences.getPreferences(context, PREFS_FILE);
+    }
+
+    public static synchronized TransferJournal getInstance(Context context) {
+        if (mInstance == null)
+            mInstance = new TransferJournal(context);
+        return mInstance;
+    }
+
+    private static String getKey(OpenPath source, OpenPath dest) {
+        return Utils.md5(source.getPath() + "\n" + dest.getPath());
+    }
+
+    private static long getModified(OpenPath source) {
+        Long modified = source.lastModified();
+        return modified != null ? modified : 0;
+    }
+
+    /**
+     * Returns the offset a download of source into dest can resume from, or
+     * 0 if there is no usable entry.
+     */
+    public synchronized long getOffset(OpenPath source, OpenPath dest) {
+        if (mPrefs == null)
+            return 0;
+        String json = mPrefs.getString(getKey(source, dest), null);
+        if (json == null)
+            return 0;
+        try {
+            JSONObject entry = new JSONObject(json);
+            long offset = entry.getLong("offset");
+            if (entry.getLong("length") != source.length()
+                    || entry.getLong("modified") != getModified(source)) {
+                Logger.LogDebug("TransferJournal: " + source + " changed since last attempt.");
+                remove(source, dest);
+                return 0;
+            }
+            if (dest.length() < offset) {
+                Logger.LogDebug("TransferJournal: " + dest + " is shorter than journaled.");
+                remove(source, dest);
+                return 0;
+            }
+            return offset;
+        } catch (JSONException e) {
+            remove(source, dest);
+            return 0;
+        }
+    }
+
+    /**
+     * Record that the first offset bytes of dest have been written and
+     * synced.
+     */
+    public synchronized void checkpoint(OpenPath source, OpenPath dest, long offset) {
+        if (mPrefs == null)
+            return;
+        try {
+            JSONObject entry = new JSONObject();
+            entry.put("offset", offset);
+            entry.put("length", source.length());
+            entry.put("modified", getModified(source));
+            mPrefs.edit().putString(getKey(source, dest), entry.toString()).commit();
+        } catch (JSONException e) {
+            Logger.LogWarning("TransferJournal: Unable to record offset.", e);
+        }
+    }
+
+    public synchronized void remove(OpenPath source, OpenPath dest) {
+        if (mPrefs != null)
+            mPrefs.edit().remove(getKey(source, dest)).commit();
+    }
+}
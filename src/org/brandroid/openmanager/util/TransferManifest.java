@@ -0,0 +1,205 @@
+
+package org.brandroid.openmanager.util;
+
+import java.io.IOException;
+import java.util.ArrayList;
+import java.util.List;
+import java.util.concurrent.ConcurrentHashMap;
+import java.util.concurrent.ExecutorService;
+import java.util.concurrent.Executors;
+import java.util.concurrent.atomic.AtomicInteger;
+import java.util.concurrent.atomic.AtomicLong;
+
+import org.brandroid.openmanager.data.OpenNetworkPath;
+import org.brandroid.openmanager.data.OpenPath;
+import org.brandroid.utils.Logger;
+
+/**
+ * Sizes of everything in a copy or move, gathered in one walk before the
+ * transfer starts. Byte counts are 64-bit throughout, so trees larger than
+ * 2 GB report sane progress, and the totals give ETA and throughput
+ * something real to work from.
+ * <p>
+ * Local trees are walked on a small pool. Network trees are walked on a
+ * single thread each, since paths on one server share a connection.
+ */
+public class TransferManifest {
+    private static final ExecutorService mWalkers = Executors.newFixedThreadPool(3);
+
+    private final AtomicLong mBytesTotal = new AtomicLong(0);
+    private final AtomicInteger mFiles = new AtomicInteger(0);
+    private final AtomicInteger mDirs = new AtomicInteger(0);
+    private final ConcurrentHashMap<String, AtomicLong> mSubtotals = new ConcurrentHashMap<String, AtomicLong>();
+
+    private final AtomicLong mBytesDone = new AtomicLong(0);
+    private final ThreadLocal<long[]> mFileProgress = new ThreadLocal<long[]>() {
+        protected long[] initialValue() {
+            return new long[1];
+        }
+    };
+
+    private int mPending = 0;
+    private volatile boolean mAborted = false;
+
+    private TransferManifest() {
+    }
+
+    /**
+     * Walk every source. Blocks until the walk is complete.
+     *
+     * @throws InterruptedException if the calling task is cancelled.
+     */
+    public static TransferManifest build(OpenPath[] sources) throws InterruptedException {
+        TransferManifest ret = new TransferManifest();
+        final List<OpenPath> remote = new ArrayList<OpenPath>();
+        for (OpenPath p : sources) {
+            if (p == null)
+                continue;
+            if (p instanceof OpenNetworkPath)
+                remote.add(p);
+            else
+                ret.submit(p, new AtomicLong[0]);
+        }
+        if (remote.size() > 0)
+            ret.submit(remote, new AtomicLong[0]);
+        ret.await();
+        Logger.LogDebug("TransferManifest: " + ret.mFiles + " files in " + ret.mDirs
+                + " folders, " + ret.mBytesTotal + " bytes");
+        return ret;
+    }
+
+    private synchronized void await() throws InterruptedException {
+        try {
+            while (mPending > 0)
+                wait();
+        } finally {
+            if (mPending > 0)
+                mAborted = true;
+        }
+    }
+
+    private synchronized void done() {
+        if (--mPending == 0)
+            notifyAll();
+    }
+
+    private void submit(final List<OpenPath> paths, final AtomicLong[] parents) {
+        synchronized (this) {
+            mPending++;
+        }
+        mWalkers.execute(new Runnable() {
+            public void run() {
+                try {
+                    for (OpenPath p : paths)
+                        walk(p, parents, false);
+                } finally {
+                    done();
+                }
+            }
+        });
+    }
+
+    private void submit(final OpenPath path, final AtomicLong[] parents) {
+        synchronized (this) {
+            mPending++;
+        }
+        mWalkers.execute(new Runnable() {
+            public void run() {
+                try {
+                    walk(path, parents, true);
+                } finally {
+                    done();
+                }
+            }
+        });
+    }
+
+    /**
+     * @param parents Subtotals of every folder above path in the walk.
+     * @param parallel Hand subfolders back to the pool instead of walking
+     *            them on this thread.
+     */
+    private void walk(OpenPath path, AtomicLong[] parents, boolean parallel) {
+        if (mAborted)
+            return;
+        if (!path.isDirectory()) {
+            long len = Math.max(0, path.length());
+            mFiles.incrementAndGet();
+            mBytesTotal.addAndGet(len);
+            for (AtomicLong parent : parents)
+                parent.addAndGet(len);
+            if (parents.length == 0)
+                mSubtotals.put(path.getPath(), new AtomicLong(len));
+            return;
+        }
+        mDirs.incrementAndGet();
+        AtomicLong subtotal = new AtomicLong(0);
+        mSubtotals.put(path.getPath(), subtotal);
+        AtomicLong[] chain = new AtomicLong[parents.length + 1];
+        System.arraycopy(parents, 0, chain, 0, parents.length);
+        chain[parents.length] = subtotal;
+        OpenPath[] kids = null;
+        try {
+            kids = path.list();
+            if (kids == null)
+                kids = path.listFiles();
+        } catch (IOException e) {
+            Logger.LogWarning("TransferManifest: Unable to list " + path, e);
+        }
+        if (kids == null)
+            return;
+        for (OpenPath kid : kids) {
+            if (kid == null)
+                continue;
+            if (parallel && kid.isDirectory())
+                submit(kid, chain);
+            else
+                walk(kid, chain, parallel);
+        }
+    }
+
+    public long getBytesTotal() {
+        return mBytesTotal.get();
+    }
+
+    public int getFileCount() {
+        return mFiles.get();
+    }
+
+    public int getFolderCount() {
+        return mDirs.get();
+    }
+
+    /**
+     * Returns the bytes under a path that was part of the walk, or -1 if it
+     * was not seen.
+     */
+    public long getSize(OpenPath path) {
+        AtomicLong ret = mSubtotals.get(path.getPath());
+        return ret != null ? ret.get() : -1;
+    }
+
+    public long getBytesDone() {
+        return mBytesDone.get();
+    }
+
+    /**
+     * Mark the start of a file on the calling thread. Progress reported by
+     * {@link #report(long)} is relative to this point.
+     */
+    public void beginFile() {
+        mFileProgress.get()[0] = 0;
+    }
+
+    /**
+     * @param fileBytes Bytes of the current file now on the destination. This
+     *            may go down if a transfer is retried from an earlier offset.
+     * @return Bytes transferred across the whole batch.
+     */
+    public long report(long fileBytes) {
+        long[] last = mFileProgress.get();
+        long delta = fileBytes - last[0];
+        last[0] = fileBytes;
+        return mBytesDone.addAndGet(delta);
+    }
+}
@@ -0,0 +1,119 @@
+
+package org.brandroid.openmanager.util;
+
+import java.util.concurrent.atomic.AtomicLong;
+
+/**
+ * Throughput and timing for one background operation. Byte counts are
+ * sampled on a fixed interval into a smoothed rate, UI updates are limited
+ * to a few per second, and the totals (bytes, duration, stalls, and time
+ * spent blocked reading versus writing) are kept for the log once the
+ * operation ends. Safe to update from several worker threads.
+ */
+public class TransferMetrics {
+    /** Minimum time between rate samples. */
+    public static final long SAMPLE_INTERVAL = 250;
+    /** Minimum time between progress updates posted to the UI. */
+    public static final long PUBLISH_INTERVAL = 250;
+    /** A gap this long without new bytes counts as a stall. */
+    public static final long STALL_THRESHOLD = 2000;
+    /** Weight of the newest sample in the smoothed rate. */
+    private static final float SMOOTHING = 0.3f;
+
+    private final long mStart = System.currentTimeMillis();
+    private long mEnd = 0;
+    private long mBytes = 0;
+    private long mSampleTime = mStart;
+    private long mSampleBytes = 0;
+    private long mLastChange = mStart;
+    private long mLastPublish = 0;
+    private double mRate = 0;
+    private int mStalls = 0;
+    private long mStallTime = 0;
+    private final AtomicLong mReadNanos = new AtomicLong(0);
+    private final AtomicLong mWriteNanos = new AtomicLong(0);
+
+    /**
+     * @param bytes Bytes transferred so far by the whole operation.
+     */
+    public synchronized void update(long bytes) {
+        long now = System.currentTimeMillis();
+        if (bytes != mBytes) {
+            if (now - mLastChange >= STALL_THRESHOLD) {
+                mStalls++;
+                mStallTime += now - mLastChange;
+            }
+            mLastChange = now;
+            mBytes = bytes;
+        }
+        long elapsed = now - mSampleTime;
+        if (elapsed < SAMPLE_INTERVAL)
+            return;
+        double rate = (double)Math.max(0, bytes - mSampleBytes) * 1000 / elapsed;
+        mRate = mSampleBytes == 0 && mRate == 0 ? rate : rate * SMOOTHING + mRate
+                * (1 - SMOOTHING);
+        mSampleTime = now;
+        mSampleBytes = bytes;
+    }
+
+    /**
+     * Returns true if enough time has passed since the last UI update. A
+     * true result counts as an update.
+     */
+    public synchronized boolean shouldPublish() {
+        long now = System.currentTimeMillis();
+        if (now - mLastPublish < PUBLISH_INTERVAL)
+            return false;
+        mLastPublish = now;
+        return true;
+    }
+
+    public synchronized long getBytes() {
+        return mBytes;
+    }
+
+    /**
+     * Returns the smoothed rate in bytes per second, or 0 while stalled.
+     */
+    public synchronized long getRate() {
+        if (mEnd == 0 && System.currentTimeMillis() - mLastChange >= STALL_THRESHOLD)
+            return 0;
+        return (long)mRate;
+    }
+
+    /**
+     * Returns the estimated seconds left to move the given number of bytes,
+     * or 0 if there is no rate to go by.
+     */
+    public long getRemaining(long bytesLeft) {
+        long rate = getRate();
+        return rate > 0 && bytesLeft > 0 ? bytesLeft / rate : 0;
+    }
+
+    public void addReadTime(long nanos) {
+        mReadNanos.addAndGet(nanos);
+    }
+
+    public void addWriteTime(long nanos) {
+        mWriteNanos.addAndGet(nanos);
+    }
+
+    public synchronized void finish() {
+        if (mEnd == 0)
+            mEnd = System.currentTimeMillis();
+    }
+
+    public synchronized long getDuration() {
+        return (mEnd > 0 ? mEnd : System.currentTimeMillis()) - mStart;
+    }
+
+    @Override
+    public synchronized String toString() {
+        long duration = getDuration();
+        return mBytes + " bytes in " + duration + "ms ("
+                + (duration > 0 ? mBytes * 1000 / duration : 0) + " B/s), " + mStalls
+                + " stalls (" + mStallTime + "ms), blocked on read "
+                + mReadNanos.get() / 1000000 + "ms, on write " + mWriteNanos.get() / 1000000
+                + "ms";
+    }
+}
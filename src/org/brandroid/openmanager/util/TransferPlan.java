@@ -0,0 +1,143 @@
+
+package org.brandroid.openmanager.util;
+
+import java.io.IOException;
+import java.util.ArrayList;
+import java.util.Collection;
+import java.util.HashMap;
+import java.util.HashSet;
+import java.util.List;
+import java.util.Map;
+
+import org.brandroid.openmanager.data.OpenPath;
+import org.brandroid.openmanager.data.OpenSmartFolder;
+import org.brandroid.utils.Logger;
+
+/**
+ * The sources of a paste and the names they will take in the destination.
+ * {@link #scan()} lists the destination once so every conflict can be found
+ * (and resolved) in memory, rather than checking each name with its own
+ * exists() round trip.
+ */
+public class TransferPlan {
+    private final OpenPath mIntoDir;
+    private final ArrayList<OpenPath> mSources;
+    private final HashSet<String> mExisting = new HashSet<String>();
+    private final ArrayList<OpenPath> mConflicts = new ArrayList<OpenPath>();
+    private final HashSet<OpenPath> mConflictDirs = new HashSet<OpenPath>();
+    private final HashMap<String, String> mTargetNames = new HashMap<String, String>();
+
+    public TransferPlan(Collection<OpenPath> sources, OpenPath intoDir) {
+        mSources = new ArrayList<OpenPath>(sources);
+        mIntoDir = intoDir;
+    }
+
+    private static String getName(OpenPath path) {
+        String name = path.getName();
+        // OpenFileRoot names folders with a trailing slash
+        if (name.endsWith("/"))
+            name = name.substring(0, name.length() - 1);
+        return name;
+    }
+
+    /**
+     * List the destination and collect conflicting sources. Touches the
+     * destination, so it must not be called on the UI thread.
+     */
+    public TransferPlan scan() {
+        OpenPath dir = mIntoDir;
+        if (dir instanceof OpenSmartFolder)
+            dir = ((OpenSmartFolder)dir).getFirstDir();
+        mExisting.clear();
+        mConflicts.clear();
+        mConflictDirs.clear();
+        boolean listed = false;
+        if (dir != null) {
+            try {
+                OpenPath[] kids = dir.listFiles();
+                if (kids != null) {
+                    for (OpenPath kid : kids)
+                        if (kid != null)
+                            mExisting.add(getName(kid));
+                    listed = true;
+                }
+            } catch (IOException e) {
+                Logger.LogWarning("TransferPlan: Unable to list " + dir, e);
+            }
+        }
+        for (OpenPath src : mSources) {
+            boolean exists;
+            if (listed)
+                exists = mExisting.contains(getName(src));
+            else {
+                OpenPath child = dir != null ? dir.getChild(src.getName()) : null;
+                exists = child != null && child.exists();
+                if (exists)
+                    mExisting.add(getName(src));
+            }
+            if (exists) {
+                mConflicts.add(src);
+                // checked now, since renaming happens on the UI thread
+                if (src.isDirectory())
+                    mConflictDirs.add(src);
+            }
+        }
+        return this;
+    }
+
+    public OpenPath getIntoDir() {
+        return mIntoDir;
+    }
+
+    public List<OpenPath> getConflicts() {
+        return mConflicts;
+    }
+
+    public OpenPath[] getSources() {
+        return mSources.toArray(new OpenPath[mSources.size()]);
+    }
+
+    /**
+     * Returns source paths mapped to the name they should be given in the
+     * destination, for sources that are not keeping their own name.
+     */
+    public Map<String, String> getTargetNames() {
+        return mTargetNames;
+    }
+
+    public void setTargetName(OpenPath source, String name) {
+        mTargetNames.put(source.getPath(), name);
+    }
+
+    public void remove(OpenPath source) {
+        mSources.remove(source);
+        mConflicts.remove(source);
+        mTargetNames.remove(source.getPath());
+    }
+
+    public void skipConflicts() {
+        mSources.removeAll(mConflicts);
+        mConflicts.clear();
+    }
+
+    /**
+     * Give every conflicting source a free name of the form "name (n)".
+     */
+    public void renameConflicts() {
+        for (OpenPath src : mConflicts) {
+            String name = getName(src);
+            String base = name, ext = "";
+            int dot = name.lastIndexOf('.');
+            if (dot > 0 && !mConflictDirs.contains(src)) {
+                base = name.substring(0, dot);
+                ext = name.substring(dot);
+            }
+            String target = name;
+            for (int i = 1; mExisting.contains(target); i++)
+                target = base + " (" + i + ")" + ext;
+            mExisting.add(target);
+            mTargetNames.put(src.getPath(), target);
+        }
+        mConflicts.clear();
+    }
+}
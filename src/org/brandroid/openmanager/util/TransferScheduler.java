@@ -0,0 +1,252 @@
+
+package org.brandroid.openmanager.util;
+
+import java.util.ArrayList;
+import java.util.HashMap;
+import java.util.Iterator;
+import java.util.LinkedList;
+import java.util.List;
+import java.util.concurrent.ExecutionException;
+import java.util.concurrent.ExecutorService;
+import java.util.concurrent.Executors;
+import java.util.concurrent.Future;
+
+import org.brandroid.openmanager.data.OpenFile;
+import org.brandroid.openmanager.data.OpenFileRoot;
+import org.brandroid.openmanager.data.OpenNetworkPath;
+import org.brandroid.openmanager.data.OpenPath;
+import org.brandroid.openmanager.data.OpenSmartFolder;
+import org.brandroid.utils.Logger;
+
+import android.net.Uri;
+
+/**
+ * Runs a batch of transfers concurrently. Each source path becomes one work
+ * item, and items are handed to worker threads only while both the source
+ * endpoint (server or local volume) and the destination endpoint are below
+ * their concurrency limits. That keeps several requests in flight against a
+ * high latency server without thrashing a single flash device.
+ */
+public class TransferScheduler {
+    public static final int DEFAULT_HOST_LIMIT = 3;
+    public static final int DEFAULT_DEVICE_LIMIT = 2;
+    public static final int MAX_THREADS = 6;
+
+    private static final ExecutorService mWorkers = Executors.newCachedThreadPool();
+
+    private final int mHostLimit;
+    private final int mDeviceLimit;
+
+    private final LinkedList<Item> mPending = new LinkedList<Item>();
+    private final HashMap<String, Integer> mActive = new HashMap<String, Integer>();
+    private int mCompleted = 0;
+    private int mSucceeded = 0;
+
+    public interface TransferWorker {
+        /**
+         * Transfer a single item. Called on a worker thread.
+         *
+         * @return true if the item was transferred.
+         */
+        public boolean transfer(OpenPath source, OpenPath intoDir);
+
+        public boolean isCancelled();
+
+        /**
+         * Called on a worker thread as each item begins.
+         *
+         * @param source Path about to be transferred.
+         * @param completed Number of items already finished.
+         */
+        public void onItemStarted(OpenPath source, int completed);
+    }
+
+    private static class Item {
+        final OpenPath source;
+        final String srcKey, dstKey;
+
+        Item(OpenPath source, String srcKey, String dstKey) {
+            this.source = source;
+            this.srcKey = srcKey;
+            this.dstKey = dstKey;
+        }
+    }
+
+    public TransferScheduler() {
+        this(DEFAULT_HOST_LIMIT, DEFAULT_DEVICE_LIMIT);
+    }
+
+    /**
+     * @param hostLimit Concurrent transfers allowed per network server.
+     * @param deviceLimit Concurrent transfers allowed per local volume.
+     */
+    public TransferScheduler(int hostLimit, int deviceLimit) {
+        mHostLimit = Math.max(1, hostLimit);
+        mDeviceLimit = Math.max(1, deviceLimit);
+    }
+
+    /**
+     * Returns a key identifying the server or volume a path lives on. Network
+     * paths are keyed by scheme and host, local paths by mount point.
+     */
+    public static String getEndpoint(OpenPath path) {
+        if (path instanceof OpenSmartFolder && ((OpenSmartFolder)path).getFirstDir() != null)
+            path = ((OpenSmartFolder)path).getFirstDir();
+        if (path instanceof OpenNetworkPath) {
+            Uri uri = path.getUri();
+            return uri.getScheme() + "://" + uri.getHost();
+        }
+        if (path instanceof OpenFile || path instanceof OpenFileRoot) {
+            String mount = DFInfo.getMountPoint(path.getPath());
+            return "file://" + (mount != null ? mount : "/");
+        }
+        return path.getClass().getSimpleName();
+    }
+
+    private int getLimit(String key) {
+        return key.startsWith("file://") ? mDeviceLimit : mHostLimit;
+    }
+
+    /**
+     * Returns the number of worker threads a batch would use. A result of 1
+     * means the batch gains nothing from being scheduled.
+     */
+    public int getConcurrency(OpenPath[] sources, OpenPath intoDir) {
+        String dst = getEndpoint(intoDir);
+        HashMap<String, Integer> perSource = new HashMap<String, Integer>();
+        int slots = 0;
+        for (OpenPath p : sources) {
+            if (p == null)
+                continue;
+            String src = getEndpoint(p);
+            int used = perSource.containsKey(src) ? perSource.get(src) : 0;
+            if (used < getLimit(src)) {
+                perSource.put(src, used + 1);
+                slots++;
+            }
+        }
+        return Math.max(1, Math.min(MAX_THREADS, Math.min(slots, getLimit(dst))));
+    }
+
+    public synchronized int getCompleted() {
+        return mCompleted;
+    }
+
+    /**
+     * Transfer every source into intoDir, blocking until all items are done
+     * or the worker reports cancellation.
+     *
+     * @return Number of items transferred successfully.
+     */
+    public int run(OpenPath[] sources, OpenPath intoDir, final TransferWorker worker) {
+        final OpenPath dest = intoDir;
+        String dstKey = getEndpoint(intoDir);
+        synchronized (this) {
+            mPending.clear();
+            mActive.clear();
+            mCompleted = mSucceeded = 0;
+            for (OpenPath p : sources) {
+                if (p == null)
+                    continue;
+                mPending.add(new Item(p, getEndpoint(p), dstKey));
+            }
+        }
+
+        int threads = getConcurrency(sources, intoDir);
+        Logger.LogDebug("TransferScheduler running " + mPending.size() + " items on " + threads
+                + " threads");
+        List<Future<?>> futures = new ArrayList<Future<?>>();
+        for (int i = 0; i < threads; i++)
+            futures.add(mWorkers.submit(new Runnable() {
+                public void run() {
+                    Item item;
+                    while ((item = next(worker)) != null) {
+                        boolean ok = false;
+                        try {
+                            worker.onItemStarted(item.source, getCompleted());
+                            ok = worker.transfer(item.source, dest);
+                        } catch (RuntimeException e) {
+                            Logger.LogError("Transfer failed for " + item.source, e);
+                        } finally {
+                            finish(item, ok);
+                        }
+                    }
+                }
+            }));
+
+        for (Future<?> f : futures) {
+            try {
+                f.get();
+            } catch (InterruptedException e) {
+                Logger.LogWarning("TransferScheduler interrupted.", e);
+                synchronized (this) {
+                    mPending.clear();
+                    notifyAll();
+                }
+            } catch (ExecutionException e) {
+                Logger.LogError("TransferScheduler worker failed.", e);
+            }
+        }
+        synchronized (this) {
+            return mSucceeded;
+        }
+    }
+
+    /**
+     * Block until an item whose endpoints have a free slot is available.
+     * Returns null once the queue is empty or the batch is cancelled.
+     */
+    private synchronized Item next(TransferWorker worker) {
+        while (!mPending.isEmpty()) {
+            if (worker.isCancelled()) {
+                mPending.clear();
+                break;
+            }
+            for (Iterator<Item> it = mPending.iterator(); it.hasNext();) {
+                Item item = it.next();
+                if (count(item.srcKey) < getLimit(item.srcKey)
+                        && count(item.dstKey) < getLimit(item.dstKey)) {
+                    it.remove();
+                    acquire(item.srcKey);
+                    if (!item.dstKey.equals(item.srcKey))
+                        acquire(item.dstKey);
+                    return item;
+                }
+            }
+            try {
+                wait(500);
+            } catch (InterruptedException e) {
+                return null;
+            }
+        }
+        notifyAll();
+        return null;
+    }
+
+    private synchronized void finish(Item item, boolean success) {
+        release(item.srcKey);
+        if (!item.dstKey.equals(item.srcKey))
+            release(item.dstKey);
+        mCompleted++;
+        if (success)
+            mSucceeded++;
+        notifyAll();
+    }
+
+    private int count(String key) {
+        Integer n = mActive.get(key);
+        return n == null ? 0 : n;
+    }
+
+    private void acquire(String key) {
+        mActive.put(key, count(key) + 1);
+    }
+
+    private void release(String key) {
+        int n = count(key) - 1;
+        if (n > 0)
+            mActive.put(key, n);
+        else
+            mActive.remove(key);
+    }
+}
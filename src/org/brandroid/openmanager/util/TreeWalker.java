@@ -0,0 +1,160 @@
+
+package org.brandroid.openmanager.util;
+
+import java.io.IOException;
+import java.util.ArrayList;
+import java.util.List;
+import java.util.concurrent.CountDownLatch;
+import java.util.concurrent.ExecutorService;
+import java.util.concurrent.Executors;
+import java.util.concurrent.LinkedBlockingDeque;
+import java.util.concurrent.TimeUnit;
+import java.util.concurrent.atomic.AtomicBoolean;
+import java.util.concurrent.atomic.AtomicInteger;
+
+import org.brandroid.openmanager.data.OpenNetworkPath;
+import org.brandroid.openmanager.data.OpenPath;
+import org.brandroid.utils.Logger;
+
+/**
+ * Walks a directory tree on several threads. Each worker keeps its own deque
+ * of folders still to list, working depth first from the head, and steals
+ * from the tail of another worker's deque when its own runs dry, so one deep
+ * branch doesn't leave the other threads idle. Network trees are walked on a
+ * single thread, since their paths share one connection.
+ */
+public class TreeWalker {
+    public static final int DEFAULT_THREADS = 4;
+    /** Interval between {@link Visitor#onTick()} calls. */
+    public static final long TICK = 250;
+
+    private static final ExecutorService mWorkers = Executors.newCachedThreadPool();
+
+    private final int mThreads;
+
+    public interface Visitor {
+        /**
+         * Called on a worker thread for every path found.
+         *
+         * @return false to skip descending into path.
+         */
+        public boolean onVisit(OpenPath path);
+
+        /**
+         * Called periodically on the thread that started the walk, for
+         * publishing results in batches.
+         */
+        public void onTick();
+
+        public boolean isCancelled();
+    }
+
+    /**
+     * A visitor that also receives each folder's listing as a whole.
+     */
+    public interface FolderVisitor extends Visitor {
+        /**
+         * Called on a worker thread after a folder is listed, before its
+         * children are visited.
+         */
+        public void onFolder(OpenPath dir, OpenPath[] kids);
+    }
+
+    public TreeWalker() {
+        this(DEFAULT_THREADS);
+    }
+
+    public TreeWalker(int threads) {
+        mThreads = Math.max(1, threads);
+    }
+
+    /**
+     * Visit everything below root, blocking until the walk is complete or
+     * the visitor is cancelled. Root itself is not visited.
+     */
+    public void walk(OpenPath root, final Visitor visitor) throws InterruptedException {
+        final int threads = root instanceof OpenNetworkPath ? 1 : mThreads;
+        final List<LinkedBlockingDeque<OpenPath>> queues;
+        queues = new ArrayList<LinkedBlockingDeque<OpenPath>>(threads);
+        for (int i = 0; i < threads; i++)
+            queues.add(new LinkedBlockingDeque<OpenPath>());
+        final AtomicInteger pending = new AtomicInteger(1);
+        final CountDownLatch latch = new CountDownLatch(threads);
+        final AtomicBoolean aborted = new AtomicBoolean(false);
+        queues.get(0).offerFirst(root);
+        for (int i = 0; i < threads; i++) {
+            final int index = i;
+            mWorkers.execute(new Runnable() {
+                public void run() {
+                    try {
+                        work(index, queues, pending, visitor, aborted);
+                    } finally {
+                        latch.countDown();
+                    }
+                }
+            });
+        }
+        try {
+            while (!latch.await(TICK, TimeUnit.MILLISECONDS)) {
+                visitor.onTick();
+                if (visitor.isCancelled())
+                    aborted.set(true);
+            }
+        } finally {
+            aborted.set(true);
+        }
+    }
+
+    private void work(int index, List<LinkedBlockingDeque<OpenPath>> queues,
+            AtomicInteger pending, Visitor visitor, AtomicBoolean aborted) {
+        LinkedBlockingDeque<OpenPath> own = queues.get(index);
+        while (!aborted.get() && pending.get() > 0) {
+            OpenPath dir = own.pollFirst();
+            if (dir == null)
+                dir = steal(index, queues);
+            if (dir == null) {
+                try {
+                    dir = own.pollFirst(10, TimeUnit.MILLISECONDS);
+                } catch (InterruptedException e) {
+                    return;
+                }
+                if (dir == null)
+                    continue;
+            }
+            try {
+                OpenPath[] kids = dir.list();
+                if (kids == null)
+                    kids = dir.listFiles();
+                if (kids == null)
+                    continue;
+                if (visitor instanceof FolderVisitor)
+                    ((FolderVisitor)visitor).onFolder(dir, kids);
+                for (OpenPath kid : kids) {
+                    if (aborted.get())
+                        break;
+                    if (kid == null || kid.getName() == null)
+                        continue;
+                    if (visitor.onVisit(kid) && kid.isDirectory()) {
+                        pending.incrementAndGet();
+                        own.offerFirst(kid);
+                    }
+                }
+            } catch (IOException e) {
+                Logger.LogWarning("TreeWalker: Unable to list " + dir, e);
+            } catch (RuntimeException e) {
+                Logger.LogError("TreeWalker: Failed walking " + dir, e);
+            } finally {
+                pending.decrementAndGet();
+            }
+        }
+    }
+
+    private static OpenPath steal(int index, List<LinkedBlockingDeque<OpenPath>> queues) {
+        for (int i = 1; i < queues.size(); i++) {
+            OpenPath ret = queues.get((index + i) % queues.size()).pollLast();
+            if (ret != null)
+                return ret;
+        }
+        return null;
+    }
+}